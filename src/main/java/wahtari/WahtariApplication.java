@@ -3,6 +3,7 @@ package wahtari;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.context.annotation.ComponentScan;
+import wahtari.config.BackfillApplication;
 
 
 @SpringBootApplication
@@ -11,6 +12,10 @@ public class WahtariApplication {
 
 
     public static void main(String[] args) {
+        if (BackfillApplication.requested(args)) {
+            BackfillApplication.run(args);
+            return;
+        }
         SpringApplication.run(WahtariApplication.class, args);
     }
 
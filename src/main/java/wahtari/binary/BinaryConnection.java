@@ -0,0 +1,207 @@
+package wahtari.binary;
+
+import wahtari.data.util.BufferPool;
+import wahtari.http.IngestResult;
+import wahtari.http.MessageValidator;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+
+/**
+ * Connection of the binary ingest protocol, served by a single selector thread.
+ *
+ * Buffers are taken from the pool only while data is in flight: the input buffer while a frame
+ * is incomplete, the output buffer while responses are not written. Complete frames are handled only
+ * if their responses fit into the output buffer, otherwise reading stops until the client
+ * has read the pending responses.
+ */
+final class BinaryConnection {
+
+    private final SocketChannel channel;
+    private final BufferPool pool;
+    private final MessageValidator validator;
+    private final Utf8Decoder userIds;
+    private final Utf8Decoder userAgents;
+    private SelectionKey key;
+
+    private ByteBuffer in;
+    private ByteBuffer out;
+    // complete frames wait for space in the output buffer
+    private boolean blocked;
+
+    BinaryConnection(SocketChannel channel, BufferPool pool, MessageValidator validator,
+                     Utf8Decoder userIds, Utf8Decoder userAgents) {
+        this.channel = channel;
+        this.pool = pool;
+        this.validator = validator;
+        this.userIds = userIds;
+        this.userAgents = userAgents;
+    }
+
+    void attach(SelectionKey key) {
+        this.key = key;
+    }
+
+    void onReadable() throws IOException {
+        if (in == null) {
+            in = pool.acquire();
+        }
+        if (channel.read(in) < 0) {
+            close();
+            return;
+        }
+        process();
+    }
+
+    void onWritable() throws IOException {
+        flush();
+        if (blocked) {
+            process();
+        }
+    }
+
+    private void process() throws IOException {
+        do {
+            if (in != null) {
+                in.flip();
+                blocked = !handleFrames();
+                in.compact();
+                if (in.position() == 0) {
+                    pool.release(in);
+                    in = null;
+                }
+            }
+            flush();
+            // with all responses written no event would come for the frame left, handle it now;
+            // its responses fit into an empty output buffer
+        } while (blocked && out == null);
+    }
+
+    /**
+     * @return false if a complete frame is left because its responses don't fit into the output buffer
+     */
+    private boolean handleFrames() throws ProtocolException {
+        while (in.remaining() >= BinaryFrame.HEADER_BYTES) {
+            int start = in.position();
+            int length = in.getInt(start);
+            if (length < BinaryFrame.HEADER_BYTES - BinaryFrame.LENGTH_BYTES
+                    || length > pool.bufferSize() - BinaryFrame.LENGTH_BYTES) {
+                throw new ProtocolException("Invalid frame length " + length);
+            }
+            if (in.remaining() < BinaryFrame.LENGTH_BYTES + length) {
+                return true;
+            }
+            int count = in.getInt(start + BinaryFrame.LENGTH_BYTES);
+            if (count < 0 || count > BinaryFrame.maxMessages(length)) {
+                throw new ProtocolException("Invalid number of messages " + count);
+            }
+            if (out == null) {
+                out = pool.acquire();
+            }
+            if (out.remaining() < BinaryFrame.RESPONSE_HEADER_BYTES + count) {
+                return false;
+            }
+
+            int end = start + BinaryFrame.LENGTH_BYTES + length;
+            // the whole frame is checked first, so that a malformed frame counts none of its messages
+            int offset = start + BinaryFrame.HEADER_BYTES;
+            for (int i = 0; i < count; i++) {
+                offset = skipMessage(offset, end);
+            }
+            if (offset != end) {
+                throw new ProtocolException("Frame has " + (end - offset) + " bytes after the last message");
+            }
+            offset = start + BinaryFrame.HEADER_BYTES;
+            out.putInt(count);
+            for (int i = 0; i < count; i++) {
+                offset = handleMessage(offset);
+            }
+            in.position(end);
+        }
+        return true;
+    }
+
+    /**
+     * Checks that the message fits into the frame.
+     *
+     * @return offset of the next message
+     */
+    private int skipMessage(int offset, int end) throws ProtocolException {
+        if (end - offset < BinaryFrame.MIN_MESSAGE_BYTES) {
+            throw new ProtocolException("Truncated message");
+        }
+        int userIdLength = in.getShort(offset + BinaryFrame.USER_ID_LENGTH) & 0xffff;
+        int userAgentLengthAt = offset + BinaryFrame.USER_ID + userIdLength;
+        if (userAgentLengthAt + 2 > end) {
+            throw new ProtocolException("Truncated message");
+        }
+        int next = userAgentLengthAt + 2 + (in.getShort(userAgentLengthAt) & 0xffff);
+        if (next > end) {
+            throw new ProtocolException("Truncated message");
+        }
+        return next;
+    }
+
+    /**
+     * Validates a message checked by {@link #skipMessage}.
+     *
+     * @return offset of the next message
+     */
+    private int handleMessage(int offset) {
+        int userIdLength = in.getShort(offset + BinaryFrame.USER_ID_LENGTH) & 0xffff;
+        int userAgentLengthAt = offset + BinaryFrame.USER_ID + userIdLength;
+        int userAgentLength = in.getShort(userAgentLengthAt) & 0xffff;
+        int next = userAgentLengthAt + 2 + userAgentLength;
+
+        CharSequence userId = userIds.decode(in, offset + BinaryFrame.USER_ID, userIdLength);
+        CharSequence userAgent = userAgentLength == 0 ? null
+                : userAgents.decode(in, userAgentLengthAt + 2, userAgentLength);
+        IngestResult result;
+        try {
+            result = validator.ingest(in.getInt(offset + BinaryFrame.CUSTOMER_ID),
+                    in.getInt(offset + BinaryFrame.TAG_ID), in.getInt(offset + BinaryFrame.IP),
+                    in.getLong(offset + BinaryFrame.TIMESTAMP), userId, userAgent);
+        } catch (IllegalStateException e) {
+            // not reloaded yet
+            result = IngestResult.OVERLOADED;
+        }
+        out.put((byte) result.code());
+        return next;
+    }
+
+    private void flush() throws IOException {
+        if (out != null) {
+            out.flip();
+            channel.write(out);
+            out.compact();
+            if (out.position() == 0) {
+                pool.release(out);
+                out = null;
+            }
+        }
+        if (key.isValid()) {
+            key.interestOps((out != null ? SelectionKey.OP_WRITE : 0) | (blocked ? 0 : SelectionKey.OP_READ));
+        }
+    }
+
+    void close() {
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // nothing to do
+        }
+        if (in != null) {
+            pool.release(in);
+            in = null;
+        }
+        if (out != null) {
+            pool.release(out);
+            out = null;
+        }
+    }
+}
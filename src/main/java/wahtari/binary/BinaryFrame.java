@@ -0,0 +1,49 @@
+package wahtari.binary;
+
+/**
+ * Length-prefixed frames of the binary ingest protocol (big-endian).
+ *
+ * A request frame carries any number of messages:
+ * <pre>
+ *  0  int   length of the rest of the frame, bytes
+ *  4  int   number of messages
+ *  8  messages, each:
+ *      0  int    customer id
+ *      4  int    tag id
+ *      8  int    remote IPv4 address
+ *     12  long   timestamp, epoch seconds
+ *     20  u16    user id length, followed by the user id, UTF-8
+ *     ..  u16    user agent length, followed by the user agent, UTF-8; 0 if unknown
+ * </pre>
+ * Every request frame is answered by a response frame, in order, so clients may pipeline requests:
+ * <pre>
+ *  0  int   number of messages
+ *  4  byte  {@link wahtari.http.IngestResult} code of each message, in order
+ * </pre>
+ * A malformed frame closes the connection.
+ */
+final class BinaryFrame {
+
+    static final int LENGTH_BYTES = 4;
+    static final int HEADER_BYTES = 8;
+    // message with empty user id and user agent
+    static final int MIN_MESSAGE_BYTES = 24;
+
+    static final int CUSTOMER_ID = 0;
+    static final int TAG_ID = 4;
+    static final int IP = 8;
+    static final int TIMESTAMP = 12;
+    static final int USER_ID_LENGTH = 20;
+    static final int USER_ID = 22;
+
+    static final int RESPONSE_HEADER_BYTES = 4;
+
+    private BinaryFrame() {}
+
+    /**
+     * @return max number of messages in a frame of the given length, as stored in the frame
+     */
+    static int maxMessages(int length) {
+        return (length - (HEADER_BYTES - LENGTH_BYTES)) / MIN_MESSAGE_BYTES;
+    }
+}
@@ -0,0 +1,273 @@
+package wahtari.binary;
+
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.ContextRefreshedEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import wahtari.data.util.BufferPool;
+import wahtari.http.MessageValidator;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+
+/**
+ * Optional listener of the binary ingest protocol ({@link BinaryFrame}), enabled by {@code ingest.binary.port}
+ * and/or {@code ingest.binary.socketPath}. The unix domain socket is meant for proxies on the same host,
+ * which skip the TCP stack that way. Both serve binary frames only, HTTP stays on the TCP listener of Undertow.
+ *
+ * An acceptor thread hands connections over to a fixed set of selector threads, round robin.
+ * Messages are validated on the selector threads, by the same {@link MessageValidator} as JSON requests.
+ */
+@Component
+public class BinaryIngestServer {
+
+    private static final Logger log = LoggerFactory.getLogger(BinaryIngestServer.class);
+
+    // file type bits of a unix mode
+    private static final int S_IFMT = 0170000;
+    private static final int S_IFSOCK = 0140000;
+
+    private final MessageValidator validator;
+    private final int port;
+    private final String host;
+    private final Path socketPath;
+    private final int threads;
+    private final int maxFrameBytes;
+    private final BufferPool pool;
+
+    private final List<ServerSocketChannel> listeners = new ArrayList<>();
+    private Selector acceptSelector;
+    private Worker[] workers;
+    private volatile boolean running;
+
+    public BinaryIngestServer(@Autowired MessageValidator validator,
+                              @Value("${ingest.binary.port:0}") int port,
+                              @Value("${ingest.binary.host:127.0.0.1}") String host,
+                              @Value("${ingest.binary.socketPath:}") String socketPath,
+                              @Value("${ingest.binary.threads:0}") int threads,
+                              @Value("${ingest.binary.maxFrameBytes:65536}") int maxFrameBytes,
+                              @Value("${ingest.binary.pool.maxIdle:256}") int maxIdleBuffers) {
+        this.validator = validator;
+        this.port = port;
+        this.host = host;
+        this.socketPath = socketPath.isBlank() ? null : Path.of(socketPath);
+        this.threads = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        this.maxFrameBytes = maxFrameBytes;
+        this.pool = new BufferPool(maxFrameBytes, maxIdleBuffers);
+    }
+
+    // started once the context is refreshed, like the reloads of the dao
+    @EventListener(ContextRefreshedEvent.class)
+    public synchronized void start() throws IOException {
+        if ((port <= 0 && socketPath == null) || running) {
+            return;
+        }
+        acceptSelector = Selector.open();
+        if (port > 0) {
+            ServerSocketChannel listener = ServerSocketChannel.open();
+            listener.bind(new InetSocketAddress(host, port));
+            listen(listener);
+            log.info("Binary ingest listening on {}:{}", host, port);
+        }
+        if (socketPath != null) {
+            deleteStaleSocket(socketPath);
+            ServerSocketChannel listener = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+            listener.bind(UnixDomainSocketAddress.of(socketPath));
+            listen(listener);
+            log.info("Binary ingest listening on {}", socketPath);
+        }
+
+        running = true;
+        workers = new Worker[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Worker();
+            startThread(workers[i], "binary-ingest-" + i);
+        }
+        startThread(this::accept, "binary-accept");
+    }
+
+    /**
+     * Deletes a socket left over by a process which didn't stop cleanly, binding would fail otherwise.
+     * Fails if the path is not a socket, or if a process still accepts connections on it.
+     */
+    private static void deleteStaleSocket(Path path) throws IOException {
+        if (!Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+            return;
+        }
+        if (!isSocket(path)) {
+            throw new IOException(path + " exists and is not a socket");
+        }
+        try (SocketChannel probe = SocketChannel.open(UnixDomainSocketAddress.of(path))) {
+            throw new IOException("Another process listens on " + path);
+        } catch (ConnectException e) {
+            Files.delete(path);
+        }
+    }
+
+    private static boolean isSocket(Path path) throws IOException {
+        try {
+            int mode = (Integer) Files.getAttribute(path, "unix:mode", LinkOption.NOFOLLOW_LINKS);
+            return (mode & S_IFMT) == S_IFSOCK;
+        } catch (UnsupportedOperationException e) {
+            // no unix attributes, a socket is neither a file, a directory nor a link
+            return Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS).isOther();
+        }
+    }
+
+    private void listen(ServerSocketChannel listener) throws IOException {
+        listener.configureBlocking(false);
+        listener.register(acceptSelector, SelectionKey.OP_ACCEPT);
+        listeners.add(listener);
+    }
+
+    private static void startThread(Runnable runnable, String name) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void accept() {
+        int next = 0;
+        while (running) {
+            try {
+                acceptSelector.select();
+                for (SelectionKey key : acceptSelector.selectedKeys()) {
+                    SocketChannel channel;
+                    while ((channel = ((ServerSocketChannel) key.channel()).accept()) != null) {
+                        channel.configureBlocking(false);
+                        if (channel.getLocalAddress() instanceof InetSocketAddress) {
+                            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                        }
+                        workers[Math.floorMod(next++, workers.length)].handOver(channel);
+                    }
+                }
+                acceptSelector.selectedKeys().clear();
+            } catch (IOException e) {
+                if (running) {
+                    log.error("Binary ingest accept failed", e);
+                }
+            }
+        }
+    }
+
+    @PreDestroy
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        acceptSelector.wakeup();
+        for (Worker worker : workers) {
+            worker.selector.wakeup();
+        }
+        for (ServerSocketChannel listener : listeners) {
+            try {
+                listener.close();
+            } catch (IOException e) {
+                log.warn("Failed to close binary ingest listener", e);
+            }
+        }
+        if (socketPath != null) {
+            try {
+                Files.deleteIfExists(socketPath);
+            } catch (IOException e) {
+                log.warn("Failed to delete binary ingest socket {}", socketPath, e);
+            }
+        }
+    }
+
+    private class Worker implements Runnable {
+        final Selector selector;
+        final Queue<SocketChannel> registrations = new ConcurrentLinkedQueue<>();
+        // fields are decoded one message at a time, so connections of a thread share the decoders
+        final Utf8Decoder userIds = new Utf8Decoder(maxFrameBytes);
+        final Utf8Decoder userAgents = new Utf8Decoder(maxFrameBytes);
+
+        Worker() throws IOException {
+            selector = Selector.open();
+        }
+
+        void handOver(SocketChannel channel) {
+            registrations.add(channel);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    selector.select();
+                    SocketChannel channel;
+                    while ((channel = registrations.poll()) != null) {
+                        register(channel);
+                    }
+                    for (SelectionKey key : selector.selectedKeys()) {
+                        handle(key);
+                    }
+                    selector.selectedKeys().clear();
+                }
+            } catch (IOException e) {
+                log.error("Binary ingest selector failed", e);
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    ((BinaryConnection) key.attachment()).close();
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    // nothing to do
+                }
+            }
+        }
+
+        private void register(SocketChannel channel) {
+            BinaryConnection connection = new BinaryConnection(channel, pool, validator, userIds, userAgents);
+            try {
+                connection.attach(channel.register(selector, SelectionKey.OP_READ, connection));
+            } catch (IOException e) {
+                log.debug("Failed to register binary ingest connection", e);
+                try {
+                    channel.close();
+                } catch (IOException closeFailure) {
+                    // nothing to do
+                }
+            }
+        }
+
+        private void handle(SelectionKey key) {
+            BinaryConnection connection = (BinaryConnection) key.attachment();
+            try {
+                if (key.isReadable()) {
+                    connection.onReadable();
+                }
+                if (key.isValid() && key.isWritable()) {
+                    connection.onWritable();
+                }
+            } catch (IOException | RuntimeException e) {
+                log.debug("Closing binary ingest connection", e);
+                connection.close();
+            }
+        }
+    }
+}
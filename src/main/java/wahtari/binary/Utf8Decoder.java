@@ -0,0 +1,47 @@
+package wahtari.binary;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Decodes UTF-8 fields of a frame into a reused char buffer, so that decoding doesn't allocate.
+ * The returned sequence is valid until the next call. Not thread-safe.
+ */
+final class Utf8Decoder {
+
+    private final CharBuffer chars;
+    private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    Utf8Decoder(int capacity) {
+        chars = CharBuffer.allocate(capacity);
+    }
+
+    CharSequence decode(ByteBuffer buf, int offset, int length) {
+        chars.clear();
+        for (int i = 0; i < length; i++) {
+            byte b = buf.get(offset + i);
+            if (b < 0) {
+                return decodeSlow(buf, offset, length);
+            }
+            chars.put(i, (char) b);
+        }
+        return chars.limit(length);
+    }
+
+    private CharSequence decodeSlow(ByteBuffer buf, int offset, int length) {
+        int position = buf.position();
+        int limit = buf.limit();
+        chars.clear();
+        decoder.reset();
+        buf.limit(offset + length).position(offset);
+        decoder.decode(buf, chars, true);
+        decoder.flush(chars);
+        buf.limit(limit).position(position);
+        return chars.flip();
+    }
+}
@@ -5,17 +5,31 @@ import io.undertow.Undertow;
 import io.undertow.UndertowOptions;
 import io.undertow.server.handlers.BlockingHandler;
 import io.undertow.server.handlers.PathHandler;
+import jakarta.annotation.PreDestroy;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.DependsOn;
+import org.springframework.context.event.ContextRefreshedEvent;
+import org.springframework.context.event.EventListener;
 import org.springframework.scheduling.annotation.EnableScheduling;
-import org.springframework.scheduling.annotation.Scheduled;
 import wahtari.data.InMemoryDao;
+import wahtari.http.DatabaseDispatchHandler;
 import wahtari.http.IngestHandler;
+import wahtari.http.IngestWarmup;
+import wahtari.http.LiveReportHandler;
+import wahtari.http.MetricsHandler;
+import wahtari.http.RangeReportHandler;
+import wahtari.http.ReadyHandler;
 import wahtari.http.ReportHandler;
 
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
 
 @Configuration
 @EnableScheduling
@@ -29,15 +43,39 @@ public class AppConfig {
     @Value("${http.host}")
     private String host;
 
+    @Value("${db.http.maxConcurrent:8}")
+    private int dbMaxConcurrent;
+
+    @Value("${db.http.acquireTimeoutMs:5000}")
+    private long dbAcquireTimeoutMs;
+
+    /**
+     * Report requests run on a virtual thread each, so that slow queries never occupy the
+     * worker pool of ingest requests. Not a bean, for the same reason as {@link #reloadExecutor}.
+     */
+    private final ExecutorService dbExecutor = Executors.newThreadPerTaskExecutor(
+            Thread.ofVirtual().name("db-http-", 0).factory());
+
     @Bean(destroyMethod = "stop")
     @DependsOn("dao")
     public Undertow getUndertow(
             @Autowired IngestHandler ingestHandler,
-            @Autowired ReportHandler reportHandler
+            @Autowired ReportHandler reportHandler,
+            @Autowired RangeReportHandler rangeReportHandler,
+            @Autowired LiveReportHandler liveReportHandler,
+            @Autowired MetricsHandler metricsHandler,
+            @Autowired ReadyHandler readyHandler
     ) {
+        Semaphore dbPermits = new Semaphore(dbMaxConcurrent, true);
         PathHandler topLevelHandler = Handlers.path()
-                .addExactPath("/report", new BlockingHandler(reportHandler))
-                .addExactPath("/ingest", new BlockingHandler(ingestHandler));
+                .addExactPath("/report",
+                        new DatabaseDispatchHandler(reportHandler, dbExecutor, dbPermits, dbAcquireTimeoutMs))
+                .addExactPath("/report/range",
+                        new DatabaseDispatchHandler(rangeReportHandler, dbExecutor, dbPermits, dbAcquireTimeoutMs))
+                .addExactPath("/report/live", liveReportHandler)
+                .addExactPath("/ingest", new BlockingHandler(ingestHandler))
+                .addExactPath("/metrics", metricsHandler)
+                .addExactPath("/ready", readyHandler);
 
         Undertow server = Undertow.builder()
                 .addHttpListener(port, host)
@@ -53,8 +91,42 @@ public class AppConfig {
 
     @Autowired InMemoryDao dao;
 
-    @Scheduled(fixedDelayString = "${dao.reload.delayMs}")
-    public void reload() {
+    @Autowired IngestWarmup warmup;
+
+    @Value("${dao.reload.delayMs}")
+    private long reloadDelayMs;
+
+    /**
+     * Reloads run on their own low-priority thread, so that building the structures competes
+     * as little as possible with request processing and never delays stats flushes.
+     * Note that the JVM honours thread priorities on Linux only with {@code -XX:ThreadPriorityPolicy=1}.
+     *
+     * Not a bean: Spring would pick up a {@link ScheduledExecutorService} bean to run all scheduled jobs.
+     */
+    private final ScheduledExecutorService reloadExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "dao-reload");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+
+    // started once the context is refreshed, i.e. after database migrations, like scheduled jobs
+    @EventListener(ContextRefreshedEvent.class)
+    public void startReload() {
+        reloadExecutor.scheduleWithFixedDelay(this::reload, 0, reloadDelayMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void reload() {
         dao.reload();
+        // the warm-up needs customers and blacklists, so that messages take the same path as real ones
+        if (dao.isLoaded()) {
+            warmup.runOnce();
+        }
+    }
+
+    @PreDestroy
+    public void stopExecutors() {
+        reloadExecutor.shutdownNow();
+        dbExecutor.shutdownNow();
     }
 }
@@ -0,0 +1,32 @@
+package wahtari.config;
+
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
+import org.springframework.context.annotation.Import;
+import org.springframework.core.env.SimpleCommandLinePropertySource;
+import wahtari.data.RollupService;
+import wahtari.data.StatsBackfill;
+
+
+/**
+ * Context of the backfill command: the data source, database migrations and the backfill only.
+ * Neither the web server nor the sink, reloads or scheduled jobs are started, so nothing but the backfill
+ * writes stats while a range is rebuilt. Not a {@code @Configuration}, so the component scan of the service
+ * doesn't pick it up.
+ */
+@EnableAutoConfiguration
+@Import({StatsBackfill.class, RollupService.class, BackfillRunner.class})
+public class BackfillApplication {
+
+    /**
+     * @return true if the command line asks for a backfill, with {@code --backfill.from}
+     */
+    public static boolean requested(String[] args) {
+        String from = new SimpleCommandLinePropertySource(args).getProperty("backfill.from");
+        return from != null && !from.isBlank();
+    }
+
+    public static void run(String[] args) {
+        SpringApplication.run(BackfillApplication.class, args);
+    }
+}
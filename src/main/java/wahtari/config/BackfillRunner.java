@@ -0,0 +1,53 @@
+package wahtari.config;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.SpringApplication;
+import org.springframework.context.ApplicationContext;
+import wahtari.data.StatsBackfill;
+
+import java.nio.file.Path;
+import java.time.Instant;
+
+
+/**
+ * Recovery command, rebuilds {@code hourly_stats} from the event log and exits, run in the
+ * {@link BackfillApplication} context instead of the service:
+ * <pre>
+ * ./gradlew bootRun --args='--backfill.from=2024-01-01T00:00:00Z --backfill.to=2024-01-02T00:00:00Z'
+ * </pre>
+ */
+public class BackfillRunner implements ApplicationRunner {
+
+    private static final Logger log = LoggerFactory.getLogger(BackfillRunner.class);
+
+    @Value("${backfill.from:}")
+    private String from;
+
+    @Value("${backfill.to:}")
+    private String to;
+
+    @Value("${backfill.soleSource:false}")
+    private boolean soleSource;
+
+    @Value("${sink.dir:./data/events}")
+    private String dir;
+
+    @Autowired
+    private StatsBackfill backfill;
+
+    @Autowired
+    private ApplicationContext context;
+
+    @Override
+    public void run(ApplicationArguments args) throws Exception {
+        Instant toInstant = to.isEmpty() ? Instant.now() : Instant.parse(to);
+        StatsBackfill.Result result = backfill.backfill(Path.of(dir), Instant.parse(from), toInstant, soleSource);
+        log.info("Backfill finished: {}", result);
+        System.exit(SpringApplication.exit(context, () -> 0));
+    }
+}
@@ -0,0 +1,62 @@
+package wahtari.config;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import wahtari.sink.FileSegmentWriter;
+import wahtari.sink.MappedSegmentWriter;
+import wahtari.sink.MessageSink;
+import wahtari.sink.NoopSink;
+import wahtari.sink.OverflowPolicy;
+import wahtari.sink.RingBufferSink;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+
+@Configuration
+public class SinkConfig {
+
+    @Value("${sink.type:none}")
+    private String type;
+
+    @Value("${sink.dir:./data/events}")
+    private String dir;
+
+    @Value("${sink.drainers:2}")
+    private int drainers;
+
+    @Value("${sink.capacity:65536}")
+    private int capacity;
+
+    @Value("${sink.batchSize:1024}")
+    private int batchSize;
+
+    @Value("${sink.overflow:DROP}")
+    private OverflowPolicy overflowPolicy;
+
+    @Value("${sink.blockTimeoutMs:5}")
+    private long blockTimeoutMs;
+
+    @Value("${sink.segment.maxBytes:67108864}")
+    private long segmentMaxBytes;
+
+    @Value("${sink.segment.maxAgeMs:300000}")
+    private long segmentMaxAgeMs;
+
+    @Value("${sink.segment.indexInterval:4096}")
+    private int segmentIndexInterval;
+
+    @Bean(destroyMethod = "close")
+    public MessageSink messageSink() throws IOException {
+        return switch (type) {
+            case "none" -> new NoopSink();
+            case "file" -> new RingBufferSink(drainers, capacity, batchSize, overflowPolicy, blockTimeoutMs,
+                    partition -> new FileSegmentWriter(Path.of(dir), partition, segmentMaxBytes, segmentMaxAgeMs));
+            case "mmap" -> new RingBufferSink(drainers, capacity, batchSize, overflowPolicy, blockTimeoutMs,
+                    partition -> new MappedSegmentWriter(Path.of(dir), partition, segmentMaxBytes, segmentMaxAgeMs,
+                            segmentIndexInterval));
+            default -> throw new IllegalArgumentException("Unknown sink.type: " + type);
+        };
+    }
+}
@@ -0,0 +1,7 @@
+package wahtari.data;
+
+/**
+ * Reason of an IP blacklist entry. Addresses blocked for a count-only reason are accepted,
+ * only counted per reason.
+ */
+public record BlockReason(int id, String name, boolean countOnly) {}
@@ -0,0 +1,128 @@
+package wahtari.data;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Arrays;
+import java.util.Set;
+
+
+/**
+ * Dense slots of customer ids: counters are kept in arrays indexed by slot, so their size follows
+ * the number of customers instead of the largest id. Slots are assigned to the customers of every reload
+ * before the reload is published, and are never reassigned, so the counters of a customer stay in place.
+ * At most {@code stats.customers.max} slots are assigned, customers beyond have none.
+ *
+ * Lookups may be called from any thread, they neither lock nor allocate.
+ */
+@Component
+public class CustomerSlots {
+
+    private static final Logger log = LoggerFactory.getLogger(CustomerSlots.class);
+
+    public static final int NO_SLOT = -1;
+
+    // open addressing with linear probing; values hold slot + 1, 0 marks a free entry
+    private record Table(int[] keys, int[] values, int[] customerIds, int size, boolean overflowed) {}
+
+    private final int maxSlots;
+    private volatile Table table = new Table(new int[2], new int[2], new int[0], 0, false);
+
+    public CustomerSlots(@Value("${stats.customers.max:1048576}") int maxSlots) {
+        this.maxSlots = maxSlots;
+    }
+
+    /**
+     * @return the slot of the customer, {@link #NO_SLOT} if it has none
+     */
+    public int slot(int customerId) {
+        Table t = table;
+        int mask = t.keys.length - 1;
+        for (int i = hash(customerId) & mask; ; i = (i + 1) & mask) {
+            int value = t.values[i];
+            if (value == 0) {
+                return NO_SLOT;
+            }
+            if (t.keys[i] == customerId) {
+                return value - 1;
+            }
+        }
+    }
+
+    public int customerId(int slot) {
+        return table.customerIds[slot];
+    }
+
+    /**
+     * @return true if some customers have no slot because of the limit
+     */
+    public boolean overflowed() {
+        return table.overflowed;
+    }
+
+    /**
+     * Assigns slots to the customers which don't have one yet. Called by the reload thread.
+     * Once all slots are taken, the table is left as it is and the limit is logged only the first time.
+     */
+    public synchronized void assign(Set<Integer> customerIds) {
+        Table current = table;
+        int missing = 0;
+        for (int id : customerIds) {
+            if (slot(id) == NO_SLOT) {
+                missing++;
+            }
+        }
+        if (missing == 0) {
+            return;
+        }
+        int size = (int) Math.min(maxSlots, (long) current.size + missing);
+        boolean overflowed = current.size + missing > size;
+        if (overflowed && !current.overflowed) {
+            log.warn("{} customers have no counter slot, stats.customers.max is {}",
+                    current.size + missing - size, maxSlots);
+        }
+        if (size == current.size) {
+            // all slots are taken, only the flag may change
+            if (!current.overflowed) {
+                table = new Table(current.keys, current.values, current.customerIds, current.size, true);
+            }
+            return;
+        }
+        // load factor at most 0.5
+        int capacity = Integer.highestOneBit(Math.max(1, size) * 2 - 1) * 2;
+        int[] keys = new int[capacity];
+        int[] values = new int[capacity];
+        int[] ids = Arrays.copyOf(current.customerIds, size);
+        for (int slot = 0; slot < current.size; slot++) {
+            put(keys, values, ids[slot], slot);
+        }
+        int next = current.size;
+        for (int id : customerIds) {
+            if (next == size) {
+                break;
+            }
+            if (slot(id) == NO_SLOT) {
+                put(keys, values, id, next);
+                ids[next++] = id;
+            }
+        }
+        table = new Table(keys, values, ids, size, overflowed);
+    }
+
+    private static void put(int[] keys, int[] values, int customerId, int slot) {
+        int mask = keys.length - 1;
+        int i = hash(customerId) & mask;
+        while (values[i] != 0) {
+            i = (i + 1) & mask;
+        }
+        keys[i] = customerId;
+        values[i] = slot + 1;
+    }
+
+    private static int hash(int customerId) {
+        int h = customerId * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,168 @@
+package wahtari.data;
+
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.sql.DataSource;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Upserts stat deltas into {@code hourly_stats}, sharded by customer id.
+ *
+ * Shards are written concurrently, each one by its own connection, in transactions of at most
+ * {@code snapshot.chunkSize} rows, so no transaction holds many row locks for long. Rows are
+ * written in (customer id, hour) order and shards never share a customer, therefore concurrent
+ * transactions always lock rows in the same order and cannot deadlock.
+ */
+@Component
+public class HourlyStatsWriter {
+
+    private static final Logger log = LoggerFactory.getLogger(HourlyStatsWriter.class);
+
+    private static final Comparator<StatsService.StatDelta> KEY_ORDER =
+            Comparator.<StatsService.StatDelta>comparingInt(d -> d.key().customerId())
+                    .thenComparing(d -> d.key().hour());
+
+    /**
+     * Thrown when some shards could not be stored, carries the deltas which were not committed.
+     */
+    static class FlushException extends RuntimeException {
+        private final List<StatsService.StatDelta> failed;
+
+        FlushException(List<StatsService.StatDelta> failed, Throwable cause) {
+            super("Failed to store " + failed.size() + " stat rows", cause);
+            this.failed = failed;
+        }
+
+        List<StatsService.StatDelta> failed() {
+            return failed;
+        }
+    }
+
+    private record ShardResult(List<StatsService.StatDelta> failed, Exception error) {}
+
+    private final DataSource dataSource;
+    private final RollupService rollups;
+    private final TransactionTemplate transactionTemplate;
+    private final ExecutorService executor;
+    private final int shards;
+
+    @Value("${snapshot.chunkSize:5000}")
+    private int chunkSize;
+
+    @Value("${snapshot.flush.batchSize:500}")
+    private int batchSize;
+
+    public HourlyStatsWriter(@Autowired DataSource dataSource, @Autowired RollupService rollups,
+                             @Value("${snapshot.flush.threads:4}") int threads) {
+        this.dataSource = dataSource;
+        this.rollups = rollups;
+        this.transactionTemplate = new TransactionTemplate(new DataSourceTransactionManager(dataSource));
+        this.shards = threads;
+        AtomicInteger counter = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "stats-flush-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @throws FlushException if any shard failed; rows of other shards are committed anyway
+     */
+    void write(List<StatsService.StatDelta> deltas) {
+        List<List<StatsService.StatDelta>> byShard = new ArrayList<>(shards);
+        for (int i = 0; i < shards; i++) {
+            byShard.add(new ArrayList<>(deltas.size() / shards + 1));
+        }
+        for (StatsService.StatDelta delta : deltas) {
+            byShard.get(Math.floorMod(delta.key().customerId(), shards)).add(delta);
+        }
+
+        List<Future<ShardResult>> futures = new ArrayList<>(shards);
+        List<List<StatsService.StatDelta>> submitted = new ArrayList<>(shards);
+        for (List<StatsService.StatDelta> shard : byShard) {
+            if (!shard.isEmpty()) {
+                shard.sort(KEY_ORDER);
+                futures.add(executor.submit(() -> writeShard(shard)));
+                submitted.add(shard);
+            }
+        }
+
+        List<StatsService.StatDelta> failed = new ArrayList<>();
+        Exception error = null;
+        boolean interrupted = false;
+        for (int i = 0; i < futures.size(); i++) {
+            ShardResult result;
+            while (true) {
+                try {
+                    result = futures.get(i).get();
+                    break;
+                } catch (InterruptedException e) {
+                    // the shard is being written anyway, its outcome decides which deltas must be kept
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    // thrown outside of the chunk transactions, the whole shard is put back
+                    result = new ShardResult(submitted.get(i), e);
+                    break;
+                }
+            }
+            if (result.error() != null) {
+                failed.addAll(result.failed());
+                error = result.error();
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (error != null) {
+            throw new FlushException(failed, error);
+        }
+    }
+
+    private ShardResult writeShard(List<StatsService.StatDelta> shard) {
+        JdbcTemplate jdbc = new JdbcTemplate(dataSource);
+        for (int from = 0; from < shard.size(); from += chunkSize) {
+            List<StatsService.StatDelta> chunk = shard.subList(from, Math.min(shard.size(), from + chunkSize));
+            try {
+                transactionTemplate.executeWithoutResult(tx -> {
+                    int[][] rowsAffected = jdbc.batchUpdate(StatsService.UPSERT_SQL, chunk, batchSize,
+                            (ps, delta) -> {
+                                ps.setInt(1, delta.key().customerId());
+                                ps.setTimestamp(2, Timestamp.from(delta.key().hour()));
+                                ps.setLong(3, delta.requests());
+                                ps.setLong(4, delta.invalid());
+                            });
+                    if (log.isDebugEnabled()) {
+                        log.debug("Stored snapshot to DB, rowsAffected: {}", Arrays.deepToString(rowsAffected));
+                    }
+                    rollups.write(jdbc, chunk);
+                });
+            } catch (RuntimeException e) {
+                return new ShardResult(shard.subList(from, shard.size()), e);
+            }
+        }
+        return new ShardResult(List.of(), null);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdown();
+    }
+}
@@ -3,18 +3,25 @@ package wahtari.data;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.jdbc.core.JdbcTemplate;
-import org.springframework.jdbc.core.SingleColumnRowMapper;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
 import org.springframework.stereotype.Component;
-import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
 import wahtari.data.util.AhoCorasickOptimized;
 import wahtari.data.util.Cidr;
-import wahtari.data.util.Ip4NetworkSet;
+import wahtari.data.util.Ip4NetworkMap;
 
 import javax.sql.DataSource;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
-import java.util.stream.Collectors;
+import java.util.Set;
 
 
 @Component("dao")
@@ -22,16 +29,44 @@ public class InMemoryDao {
 
     private static final Logger log = LoggerFactory.getLogger(InMemoryDao.class);
 
-    record State (Map<Integer, Boolean> customersIndex, Ip4NetworkSet networkBlacklist, AhoCorasickOptimized userAgentBlacklist) {}
+    public static final int NOT_BLOCKED = 0;
+    // reason of addresses blacklisted by the customer itself
+    public static final int CUSTOMER_BLACKLIST = Ip4NetworkMap.MEMBER_MATCH;
+
+    record State (Map<Integer, Boolean> customersIndex, Ip4NetworkMap networkBlacklist, BlockReason[] blockReasons,
+                  AhoCorasickOptimized userAgentBlacklist) {}
+
+    // shared results of customerActive, so that lookups don't allocate
+    private static final Optional<Boolean> ACTIVE = Optional.of(true);
+    private static final Optional<Boolean> INACTIVE = Optional.of(false);
 
     private volatile State state;
 
     @Autowired
     private DataSource dataSource;
 
+    @Autowired
+    private CustomerSlots customerSlots;
+
+    @Value("${dao.reload.fetchSize:1000}")
+    private int fetchSize;
+
+    /**
+     * @return true once a reload has succeeded
+     */
+    public boolean isLoaded() {
+        return state != null;
+    }
+
+    public Set<Integer> customerIds() {
+        State current = state;
+        return current == null ? Set.of() : current.customersIndex().keySet();
+    }
+
     public Optional<Boolean> customerActive(int id) {
         if (state == null) throw new IllegalStateException("Service is not ready");
-        return Optional.ofNullable(state.customersIndex().get(id));
+        Boolean active = state.customersIndex().get(id);
+        return active == null ? Optional.empty() : active ? ACTIVE : INACTIVE;
     }
 
     public boolean customerExists(int id) {
@@ -39,50 +74,171 @@ public class InMemoryDao {
         return state.customersIndex().containsKey(id);
     }
 
-    public boolean addressBlacklisted(int addr) {
-        if (state == null) throw new IllegalStateException("Service is not ready");
-        return state.networkBlacklist().contains(addr);
+    /**
+     * Resolves the reason from the same reload as the lookup, so a reload can't remove it in between.
+     *
+     * @return the reason with id {@link #CUSTOMER_BLACKLIST} if the customer has blacklisted the address,
+     * otherwise the reason of the longest matching global blacklist entry, null if the address is not blocked
+     */
+    public BlockReason addressBlockReason(int addr, int customerId) {
+        State current = state;
+        if (current == null) throw new IllegalStateException("Service is not ready");
+        int reason = current.networkBlacklist().get(addr & 0xffffffffL, customerId);
+        return reason == Ip4NetworkMap.NO_VALUE || reason == NOT_BLOCKED ? null : current.blockReasons()[reason];
+    }
+
+    public List<BlockReason> blockReasons() {
+        State current = state;
+        if (current == null) return List.of();
+        return Arrays.stream(current.blockReasons()).filter(Objects::nonNull).toList();
     }
 
-    public boolean userAgentBlacklisted(String userAgent) {
+    /**
+     * @return true if the user agent is blacklisted globally or by the customer
+     */
+    public boolean userAgentBlacklisted(CharSequence userAgent, int customerId) {
         if (state == null) throw new IllegalStateException("Service is not ready");
-        return state.userAgentBlacklist().match(userAgent);
+        return state.userAgentBlacklist().match(userAgent, customerId);
     }
 
-    @Transactional
+    // The transaction is programmatic: @Transactional would make this bean a proxy,
+    // which allocates an argument array on every lookup of the ingest path.
     public void reload() {
+        ReloadEvent event = new ReloadEvent();
+        event.begin();
         try {
-            JdbcTemplate jdbc = new JdbcTemplate(dataSource);
-            Map<Integer, Boolean> customersIndex = reloadCustomers(jdbc);
-            Ip4NetworkSet networkTrie = reloadNetworkBlacklist(jdbc);
-            AhoCorasickOptimized userAgentTrie = reloadUserAgentBlacklist(jdbc);
-
-            state = new State(customersIndex, networkTrie, userAgentTrie);
+            new TransactionTemplate(new DataSourceTransactionManager(dataSource))
+                    .executeWithoutResult(tx -> load(event));
+            log.info("Database reloaded");
         } catch (Exception e) {
             log.error("Database reload failed", e);
+        } finally {
+            event.commit();
         }
-        log.info("Database reloaded");
     }
 
+    private void load(ReloadEvent event) {
+        JdbcTemplate jdbc = new JdbcTemplate(dataSource);
+        jdbc.setFetchSize(fetchSize);
+        long start = System.nanoTime();
+        Map<Integer, Boolean> customersIndex = reloadCustomers(jdbc);
+        long customersDone = System.nanoTime();
+        BlockReason[] blockReasons = reloadBlockReasons(jdbc);
+        Ip4NetworkMap networkTrie = reloadNetworkBlacklist(jdbc, blockReasons);
+        long ipDone = System.nanoTime();
+        AhoCorasickOptimized userAgentTrie = reloadUserAgentBlacklist(jdbc);
+        long uaDone = System.nanoTime();
+
+        // before the customers are accepted, so that every accepted message finds its counters
+        customerSlots.assign(customersIndex.keySet());
+        state = new State(customersIndex, networkTrie, blockReasons, userAgentTrie);
+
+        event.customers = customersIndex.size();
+        event.customersTime = customersDone - start;
+        event.ipNodes = networkTrie.nodeCount();
+        event.ipTime = ipDone - customersDone;
+        event.uaStates = userAgentTrie.stateCount();
+        event.uaTime = uaDone - ipDone;
+        event.success = true;
+    }
+
+    // Rows are streamed from the cursor straight into the target structures,
+    // which are presized by row counts, so no intermediate lists are materialized.
+
     private Map<Integer, Boolean> reloadCustomers(JdbcTemplate jdbc) {
-        var customers = jdbc.query("select id, active from customer",
-                (rs, i) -> new Customer(rs.getInt(1), rs.getBoolean(2)));
-        return customers.stream().collect(Collectors.toUnmodifiableMap(Customer::id, Customer::active));
+        int count = count(jdbc, "customer");
+        Map<Integer, Boolean> customers = new HashMap<>((int) (count / 0.75f) + 1);
+        jdbc.query("select id, active from customer",
+                (RowCallbackHandler) rs -> customers.put(rs.getInt(1), rs.getBoolean(2)));
+        return Collections.unmodifiableMap(customers);
+    }
+
+    private BlockReason[] reloadBlockReasons(JdbcTemplate jdbc) {
+        BlockReason[] reasons = new BlockReason[CUSTOMER_BLACKLIST + 1];
+        jdbc.query("select id, name, count_only from block_reason", (RowCallbackHandler) rs -> {
+            int id = rs.getInt(1);
+            if (id <= NOT_BLOCKED || id > Ip4NetworkMap.MAX_VALUE) {
+                log.warn("Ignoring block reason with id {} outside of [1, {}]", id, Ip4NetworkMap.MAX_VALUE);
+                return;
+            }
+            reasons[id] = new BlockReason(id, rs.getString(2), rs.getBoolean(3));
+        });
+        reasons[CUSTOMER_BLACKLIST] = new BlockReason(CUSTOMER_BLACKLIST, "customer", false);
+        return reasons;
     }
 
-    private Ip4NetworkSet reloadNetworkBlacklist(JdbcTemplate jdbc) {
-        var cidrs = jdbc.query("select address, netmask_bits from ip_blacklist",
-                (rs, i) -> new Cidr((int) rs.getLong(1), rs.getByte(2)));
-        Ip4NetworkSet blacklist = new Ip4NetworkSet();
-        for (Cidr cidr : cidrs) {
-            blacklist.put(cidr);
+    /**
+     * Entries map to their reason id, allow-list entries map to {@link #NOT_BLOCKED}.
+     * Customer entries are stored in the same trie, as members of their nodes.
+     */
+    private Ip4NetworkMap reloadNetworkBlacklist(JdbcTemplate jdbc, BlockReason[] blockReasons) {
+        long[] prefixes = new long[2];
+        for (String table : List.of("ip_blacklist", "ip_allowlist", "customer_ip_blacklist")) {
+            jdbc.query("select count(*), coalesce(sum(netmask_bits), 0) from " + table, (RowCallbackHandler) rs -> {
+                prefixes[0] += rs.getLong(1);
+                prefixes[1] += rs.getLong(2);
+            });
         }
+        Ip4NetworkMap blacklist = new Ip4NetworkMap(Ip4NetworkMap.estimateCapacity(prefixes[0], prefixes[1]));
+        jdbc.query("select address, netmask_bits, reason_id from ip_blacklist", (RowCallbackHandler) rs -> {
+            int reason = rs.getInt(3);
+            if (reason < 0 || reason >= blockReasons.length || blockReasons[reason] == null) {
+                log.warn("Ignoring blacklist entry {}/{} with unknown reason {}", rs.getLong(1), rs.getByte(2), reason);
+                return;
+            }
+            blacklist.put(new Cidr((int) rs.getLong(1), rs.getByte(2)), reason);
+        });
+        jdbc.query("select address, netmask_bits from ip_allowlist",
+                (RowCallbackHandler) rs -> blacklist.put(new Cidr((int) rs.getLong(1), rs.getByte(2)), NOT_BLOCKED));
+        jdbc.query("select address, netmask_bits, customer_id from customer_ip_blacklist",
+                (RowCallbackHandler) rs -> blacklist.addMember(new Cidr((int) rs.getLong(1), rs.getByte(2)), rs.getInt(3)));
+        blacklist.compact();
         return blacklist;
     }
 
+    /**
+     * Global patterns are owned by {@link AhoCorasickOptimized#GLOBAL}, customer patterns by the customer.
+     */
     private AhoCorasickOptimized reloadUserAgentBlacklist(JdbcTemplate jdbc) {
-        var userAgents = jdbc.query("select ua from ua_blacklist", SingleColumnRowMapper.newInstance(String.class));
-        String[] arr = userAgents.toArray(new String[0]);
-        return new AhoCorasickOptimized(arr);
+        PatternBuffer patterns = new PatternBuffer(count(jdbc, "ua_blacklist") + count(jdbc, "customer_ua_blacklist"));
+        jdbc.query("select ua from ua_blacklist",
+                (RowCallbackHandler) rs -> patterns.add(rs.getString(1), AhoCorasickOptimized.GLOBAL));
+        jdbc.query("select ua, customer_id from customer_ua_blacklist",
+                (RowCallbackHandler) rs -> patterns.add(rs.getString(1), rs.getInt(2)));
+        return new AhoCorasickOptimized(patterns.patterns(), patterns.owners());
+    }
+
+    private static final class PatternBuffer {
+        private String[] patterns;
+        private int[] owners;
+        private int size;
+
+        PatternBuffer(int capacity) {
+            patterns = new String[capacity];
+            owners = new int[capacity];
+        }
+
+        void add(String pattern, int owner) {
+            if (size == patterns.length) {
+                // rows were added after counting
+                patterns = Arrays.copyOf(patterns, size + 16);
+                owners = Arrays.copyOf(owners, size + 16);
+            }
+            patterns[size] = pattern;
+            owners[size++] = owner;
+        }
+
+        String[] patterns() {
+            return size == patterns.length ? patterns : Arrays.copyOf(patterns, size);
+        }
+
+        int[] owners() {
+            return size == owners.length ? owners : Arrays.copyOf(owners, size);
+        }
+    }
+
+    private static int count(JdbcTemplate jdbc, String table) {
+        Integer count = jdbc.queryForObject("select count(*) from " + table, Integer.class);
+        return count == null ? 0 : count;
     }
 }
@@ -0,0 +1,16 @@
+package wahtari.data;
+
+/**
+ * Counters updated by the validation of ingest messages.
+ */
+public interface MessageCounter {
+
+    void markValid(long ts, int customerId);
+
+    void markInvalid(long ts, int customerId);
+
+    /**
+     * Counts a request from an address blacklisted for the reason, rejected or not.
+     */
+    void markBlocked(int reasonId);
+}
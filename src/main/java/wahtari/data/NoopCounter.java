@@ -0,0 +1,16 @@
+package wahtari.data;
+
+public class NoopCounter implements MessageCounter {
+
+    @Override
+    public void markValid(long ts, int customerId) {
+    }
+
+    @Override
+    public void markInvalid(long ts, int customerId) {
+    }
+
+    @Override
+    public void markBlocked(int reasonId) {
+    }
+}
@@ -0,0 +1,5 @@
+package wahtari.data;
+
+import java.time.LocalDate;
+
+public record PeriodInfo(int customerId, LocalDate start, boolean monthly, long requestCount, long invalidCount) {}
@@ -0,0 +1,41 @@
+package wahtari.data;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+@Name("wahtari.Reload")
+@Label("State Reload")
+@Description("Reload of customers and blacklists from the database")
+@Category("Wahtari")
+@StackTrace(false)
+class ReloadEvent extends jdk.jfr.Event {
+
+    @Label("Success")
+    boolean success;
+
+    @Label("Customers")
+    int customers;
+
+    @Label("Customers Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long customersTime;
+
+    @Label("IP Blacklist Nodes")
+    @Description("Trie nodes after compaction")
+    int ipNodes;
+
+    @Label("IP Blacklist Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long ipTime;
+
+    @Label("UA Blacklist States")
+    int uaStates;
+
+    @Label("UA Blacklist Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long uaTime;
+}
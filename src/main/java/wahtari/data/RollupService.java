@@ -0,0 +1,198 @@
+package wahtari.data;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.sql.DataSource;
+import java.sql.Date;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Maintains {@code daily_stats} and {@code monthly_stats} along with the deltas written to {@code hourly_stats},
+ * and optionally prunes old hourly rows. Range reports are served from the coarsest level covering the range.
+ *
+ * Periods are calendar days and months in the JVM time zone, the same one used to store hourly timestamps.
+ */
+@Component
+public class RollupService {
+
+    private static final Logger log = LoggerFactory.getLogger(RollupService.class);
+
+    record RollupKey(int customerId, LocalDate period) {}
+
+    private static final String DAILY_UPSERT_SQL = """
+            insert into daily_stats(customer_id, period, request_count, invalid_count)
+            values (?, ?, ?, ?)
+            on duplicate key update
+            request_count = request_count + values(request_count),
+            invalid_count = invalid_count + values(invalid_count);
+            """;
+
+    private static final String MONTHLY_UPSERT_SQL = """
+            insert into monthly_stats(customer_id, period, request_count, invalid_count)
+            values (?, ?, ?, ?)
+            on duplicate key update
+            request_count = request_count + values(request_count),
+            invalid_count = invalid_count + values(invalid_count);
+            """;
+
+    private final DataSource dataSource;
+    private final ZoneId zone = ZoneId.systemDefault();
+
+    @Value("${rollup.hourlyRetentionDays:0}")
+    private int hourlyRetentionDays;
+
+    public RollupService(@Autowired DataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    /**
+     * Adds deltas to the rollups. Called within the transaction which writes them to {@code hourly_stats},
+     * so both levels are committed, or not, together. Deltas sorted by customer and hour lock
+     * the rollup rows in key order, like the hourly ones.
+     */
+    void write(JdbcTemplate jdbc, List<StatsService.StatDelta> deltas) {
+        Map<RollupKey, long[]> days = new LinkedHashMap<>();
+        Map<RollupKey, long[]> months = new LinkedHashMap<>();
+        for (StatsService.StatDelta delta : deltas) {
+            LocalDate day = LocalDate.ofInstant(delta.key().hour(), zone);
+            add(days, new RollupKey(delta.key().customerId(), day), delta.requests(), delta.invalid());
+            add(months, new RollupKey(delta.key().customerId(), day.withDayOfMonth(1)), delta.requests(), delta.invalid());
+        }
+        jdbc.batchUpdate(DAILY_UPSERT_SQL, rows(days));
+        jdbc.batchUpdate(MONTHLY_UPSERT_SQL, rows(months));
+    }
+
+    private static void add(Map<RollupKey, long[]> map, RollupKey key, long requests, long invalid) {
+        long[] counters = map.computeIfAbsent(key, k -> new long[2]);
+        counters[0] += requests;
+        counters[1] += invalid;
+    }
+
+    private static List<Object[]> rows(Map<RollupKey, long[]> map) {
+        List<Object[]> rows = new ArrayList<>(map.size());
+        map.forEach((key, value) -> rows.add(new Object[]{key.customerId(), Date.valueOf(key.period()), value[0], value[1]}));
+        return rows;
+    }
+
+    /**
+     * Recomputes the daily rollups of the days touched by {@code [from, to)} from {@code hourly_stats},
+     * e.g. after the hourly stats have been rebuilt, then the monthly rollups of their months from
+     * the daily ones. Days whose hourly rows may have been pruned keep their rollups.
+     */
+    public void rebuild(Instant from, Instant to) {
+        LocalDate firstDay = LocalDate.ofInstant(from, zone);
+        LocalDate lastDay = LocalDate.ofInstant(to.minusSeconds(1), zone);
+        if (hourlyRetentionDays > 0) {
+            LocalDate firstRetained = LocalDate.now(zone).minusDays(hourlyRetentionDays);
+            if (firstDay.isBefore(firstRetained)) {
+                log.warn("Rollups before {} are not rebuilt, their hourly stats may have been pruned", firstRetained);
+                firstDay = firstRetained;
+            }
+        }
+        if (lastDay.isBefore(firstDay)) {
+            return;
+        }
+        LocalDate daysFrom = firstDay;
+        LocalDate daysTo = lastDay.plusDays(1);
+        LocalDate firstMonth = firstDay.withDayOfMonth(1);
+        LocalDate monthsTo = lastDay.withDayOfMonth(1).plusMonths(1);
+
+        Map<RollupKey, long[]> days = new HashMap<>();
+        JdbcTemplate jdbc = new JdbcTemplate(dataSource);
+        new TransactionTemplate(new DataSourceTransactionManager(dataSource)).executeWithoutResult(tx -> {
+            jdbc.query("select customer_id, time, request_count, invalid_count from hourly_stats where time >= ? and time < ?",
+                    rs -> {
+                        LocalDate day = LocalDate.ofInstant(rs.getTimestamp(2).toInstant(), zone);
+                        add(days, new RollupKey(rs.getInt(1), day), rs.getLong(3), rs.getLong(4));
+                    },
+                    Timestamp.from(daysFrom.atStartOfDay(zone).toInstant()),
+                    Timestamp.from(daysTo.atStartOfDay(zone).toInstant()));
+            jdbc.update("delete from daily_stats where period >= ? and period < ?",
+                    Date.valueOf(daysFrom), Date.valueOf(daysTo));
+            jdbc.batchUpdate(DAILY_UPSERT_SQL, rows(days));
+
+            jdbc.update("delete from monthly_stats where period >= ? and period < ?",
+                    Date.valueOf(firstMonth), Date.valueOf(monthsTo));
+            for (LocalDate month = firstMonth; month.isBefore(monthsTo); month = month.plusMonths(1)) {
+                jdbc.update("""
+                                insert into monthly_stats(customer_id, period, request_count, invalid_count)
+                                select customer_id, cast(? as date), sum(request_count), sum(invalid_count) from daily_stats
+                                where period >= ? and period < ? group by customer_id
+                                """,
+                        Date.valueOf(month), Date.valueOf(month), Date.valueOf(month.plusMonths(1)));
+            }
+        });
+        log.info("Rebuilt rollups of [{}, {}]: {} daily rows, months [{}, {})", daysFrom, lastDay, days.size(),
+                firstMonth, monthsTo);
+    }
+
+    @Scheduled(fixedDelayString = "${rollup.prune.delayMs:3600000}")
+    public void pruneHourlyJob() {
+        if (hourlyRetentionDays <= 0) {
+            return;
+        }
+        try {
+            Instant threshold = LocalDate.now(zone).minusDays(hourlyRetentionDays).atStartOfDay(zone).toInstant();
+            int deleted = new JdbcTemplate(dataSource).update("delete from hourly_stats where time < ?",
+                    Timestamp.from(threshold));
+            log.info("Pruned {} hourly_stats rows before {}", deleted, threshold);
+        } catch (Exception e) {
+            log.error("failed to prune hourly stats", e);
+        }
+    }
+
+    /**
+     * Reads the range {@code [from, to]} (inclusive) from {@code monthly_stats} for the months fully
+     * inside the range and from {@code daily_stats} for the remaining days.
+     */
+    public List<PeriodInfo> getRangeReport(LocalDate from, LocalDate to, int customerId) {
+        LocalDate firstFullMonth = from.getDayOfMonth() == 1 ? from : from.withDayOfMonth(1).plusMonths(1);
+        // exclusive
+        LocalDate fullMonthsEnd = to.plusDays(1).withDayOfMonth(1);
+
+        List<PeriodInfo> results = new ArrayList<>();
+        if (firstFullMonth.isBefore(fullMonthsEnd)) {
+            results.addAll(queryDaily(customerId, from, firstFullMonth));
+            results.addAll(queryMonthly(customerId, firstFullMonth, fullMonthsEnd));
+            results.addAll(queryDaily(customerId, fullMonthsEnd, to.plusDays(1)));
+        } else {
+            results.addAll(queryDaily(customerId, from, to.plusDays(1)));
+        }
+        return results;
+    }
+
+    private List<PeriodInfo> queryDaily(int customerId, LocalDate from, LocalDate to) {
+        return query("daily_stats", false, customerId, from, to);
+    }
+
+    private List<PeriodInfo> queryMonthly(int customerId, LocalDate from, LocalDate to) {
+        return query("monthly_stats", true, customerId, from, to);
+    }
+
+    private List<PeriodInfo> query(String table, boolean monthly, int customerId, LocalDate from, LocalDate to) {
+        if (!from.isBefore(to)) {
+            return List.of();
+        }
+        String sql = "select period, request_count, invalid_count from " + table
+                + " where customer_id=? and period >= ? and period < ? order by period";
+        return new JdbcTemplate(dataSource).query(sql, (rs, i) -> new PeriodInfo(customerId,
+                        rs.getDate(1).toLocalDate(), monthly, rs.getLong(2), rs.getLong(3)),
+                customerId, Date.valueOf(from), Date.valueOf(to));
+    }
+}
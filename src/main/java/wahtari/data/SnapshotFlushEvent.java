@@ -0,0 +1,25 @@
+package wahtari.data;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("wahtari.SnapshotFlush")
+@Label("Snapshot Flush")
+@Description("Store of stat deltas into hourly_stats")
+@Category("Wahtari")
+@StackTrace(false)
+class SnapshotFlushEvent extends jdk.jfr.Event {
+
+    @Label("Source")
+    @Description("snapshot or spill")
+    String source;
+
+    @Label("Rows")
+    int rows;
+
+    @Label("Failed Rows")
+    int failedRows;
+}
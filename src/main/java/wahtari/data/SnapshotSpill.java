@@ -0,0 +1,103 @@
+package wahtari.data;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Stream;
+
+/**
+ * Local files with stat deltas which could neither be stored nor kept in memory.
+ * A file is written under a temporary name and renamed, so a crashed process never leaves a partial spill;
+ * after a crash of the host a file may still miss its tail, see {@link #read}.
+ */
+class SnapshotSpill {
+
+    private static final Logger log = LoggerFactory.getLogger(SnapshotSpill.class);
+
+    private static final String SUFFIX = ".spill";
+    // unreadable files, kept for inspection but never stored
+    private static final String CORRUPT_SUFFIX = ".corrupt";
+    // customer id, hour, request count, invalid count
+    private static final int RECORD_SIZE = 4 + 8 + 8 + 8;
+
+    private final Path dir;
+    private long lastName;
+
+    SnapshotSpill(Path dir) {
+        this.dir = dir;
+    }
+
+    void write(List<StatsService.StatDelta> deltas) throws IOException {
+        Files.createDirectories(dir);
+        lastName = Math.max(System.currentTimeMillis(), lastName + 1);
+        Path file = dir.resolve(lastName + SUFFIX);
+        Path tmp = dir.resolve(lastName + SUFFIX + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            for (StatsService.StatDelta delta : deltas) {
+                out.writeInt(delta.key().customerId());
+                out.writeLong(delta.key().hour().getEpochSecond());
+                out.writeLong(delta.requests());
+                out.writeLong(delta.invalid());
+            }
+        }
+        Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE);
+        log.warn("Spilled {} stat deltas to {}", deltas.size(), file);
+    }
+
+    /**
+     * @return the oldest spill file
+     */
+    Optional<Path> oldest() throws IOException {
+        if (!Files.isDirectory(dir)) {
+            return Optional.empty();
+        }
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(p -> p.getFileName().toString().endsWith(SUFFIX)).sorted().findFirst();
+        }
+    }
+
+    /**
+     * Renames an unreadable file, so that {@link #oldest} skips it.
+     *
+     * @return the new name
+     */
+    Path quarantine(Path file) throws IOException {
+        Path corrupt = file.resolveSibling(file.getFileName() + CORRUPT_SUFFIX);
+        Files.move(file, corrupt, StandardCopyOption.REPLACE_EXISTING);
+        return corrupt;
+    }
+
+    /**
+     * Reads whole records only: a file which was renamed but not completely written to disk before a crash
+     * ends with a partial record, which is skipped, so that the file can be stored and deleted like others.
+     */
+    static List<StatsService.StatDelta> read(Path file) throws IOException {
+        long size = Files.size(file);
+        int records = (int) (size / RECORD_SIZE);
+        if (size % RECORD_SIZE != 0) {
+            log.warn("Spill file {} ends with a partial record, {} bytes skipped", file, size % RECORD_SIZE);
+        }
+        List<StatsService.StatDelta> deltas = new ArrayList<>(records);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            for (int i = 0; i < records; i++) {
+                int customerId = in.readInt();
+                Instant hour = Instant.ofEpochSecond(in.readLong());
+                deltas.add(new StatsService.StatDelta(new StatsService.StatKey(hour, customerId),
+                        in.readLong(), in.readLong()));
+            }
+        }
+        return deltas;
+    }
+}
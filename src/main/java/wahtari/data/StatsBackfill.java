@@ -0,0 +1,184 @@
+package wahtari.data;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+import wahtari.data.util.HourlyCounterMap;
+import wahtari.sink.EventLog;
+import wahtari.sink.EventRecord;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Recomputes {@code hourly_stats} from the local event log. The stats of the range are replaced, never added to:
+ * flushed counts would be counted twice otherwise.
+ *
+ * Segments are scanned in parallel on a fork-join pool, every task aggregates into its own
+ * primitive {@link HourlyCounterMap}, partial maps are merged while joining.
+ */
+@Component
+public class StatsBackfill {
+
+    private static final Logger log = LoggerFactory.getLogger(StatsBackfill.class);
+
+    public record Result(int segments, long events, int rows) {}
+
+    private final DataSource dataSource;
+    private final RollupService rollups;
+
+    @Value("${backfill.parallelism:0}")
+    private int parallelism;
+
+    @Value("${backfill.batchSize:1000}")
+    private int batchSize;
+
+    public StatsBackfill(@Autowired DataSource dataSource, @Autowired RollupService rollups) {
+        this.dataSource = dataSource;
+        this.rollups = rollups;
+    }
+
+    /**
+     * Processes whole hours only: {@code from} and {@code to} are truncated to hours.
+     *
+     * @param soleSource the event log holds every event of the range, so the stored stats of the range may be
+     *                   replaced; if false the range must not have stored stats
+     * @throws IllegalStateException if the range has stored stats and the log is not confirmed as their sole source
+     */
+    public Result backfill(Path dir, Instant from, Instant to, boolean soleSource) throws IOException {
+        from = from.truncatedTo(ChronoUnit.HOURS);
+        to = to.truncatedTo(ChronoUnit.HOURS);
+        Instant currentHour = Instant.now().truncatedTo(ChronoUnit.HOURS);
+        if (to.isAfter(currentHour)) {
+            // the current hour is still being counted in memory
+            log.warn("Backfill range is cut to the current hour {}", currentHour);
+            to = currentHour;
+        }
+        if (!soleSource) {
+            // fail before the scan, the store checks again in its transaction
+            checkEmpty(new JdbcTemplate(dataSource).queryForObject(
+                    "select count(*) from hourly_stats where time >= ? and time < ?", Integer.class,
+                    Timestamp.from(from), Timestamp.from(to)), from, to);
+        }
+
+        List<Path> segments = EventLog.segments(dir);
+        LongAdder events = new LongAdder();
+        long started = System.nanoTime();
+
+        HourlyCounterMap counters;
+        ForkJoinPool pool = parallelism > 0 ? new ForkJoinPool(parallelism) : new ForkJoinPool();
+        try {
+            counters = pool.invoke(new ScanTask(segments, 0, segments.size(),
+                    from.getEpochSecond(), to.getEpochSecond(), events));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            pool.shutdown();
+        }
+        log.info("Scanned {} events in {} segments in {} ms", events.sum(), segments.size(),
+                (System.nanoTime() - started) / 1_000_000);
+
+        store(counters, from, to, soleSource);
+        if (from.isBefore(to)) {
+            rollups.rebuild(from, to);
+        }
+        return new Result(segments.size(), events.sum(), counters.size());
+    }
+
+    private void store(HourlyCounterMap counters, Instant from, Instant to, boolean soleSource) {
+        List<Object[]> rows = new ArrayList<>(counters.size());
+        counters.forEach((customerId, hour, requests, invalid) ->
+                rows.add(new Object[]{customerId, Timestamp.from(Instant.ofEpochSecond(hour)), requests, invalid}));
+
+        JdbcTemplate jdbc = new JdbcTemplate(dataSource);
+        new TransactionTemplate(new DataSourceTransactionManager(dataSource)).executeWithoutResult(tx -> {
+            int deleted = jdbc.update("delete from hourly_stats where time >= ? and time < ?",
+                    Timestamp.from(from), Timestamp.from(to));
+            if (!soleSource) {
+                checkEmpty(deleted, from, to);
+            }
+            log.info("Deleted {} hourly_stats rows in [{}, {})", deleted, from, to);
+            for (int i = 0; i < rows.size(); i += batchSize) {
+                jdbc.batchUpdate(StatsService.UPSERT_SQL, rows.subList(i, Math.min(rows.size(), i + batchSize)));
+            }
+        });
+        log.info("Stored {} hourly_stats rows", rows.size());
+    }
+
+    private static void checkEmpty(int storedRows, Instant from, Instant to) {
+        if (storedRows > 0) {
+            // stats of other nodes, and events the sink dropped or never logged, would be lost
+            throw new IllegalStateException(storedRows + " hourly_stats rows exist in [" + from + ", " + to
+                    + "), set backfill.soleSource=true to confirm that this event log is their only source");
+        }
+    }
+
+    private static class ScanTask extends RecursiveTask<HourlyCounterMap> {
+        private final List<Path> segments;
+        private final int from;
+        private final int to;
+        private final long fromTs;
+        private final long toTs;
+        private final LongAdder events;
+
+        ScanTask(List<Path> segments, int from, int to, long fromTs, long toTs, LongAdder events) {
+            this.segments = segments;
+            this.from = from;
+            this.to = to;
+            this.fromTs = fromTs;
+            this.toTs = toTs;
+            this.events = events;
+        }
+
+        @Override
+        protected HourlyCounterMap compute() {
+            if (to - from <= 1) {
+                return scan();
+            }
+            int mid = (from + to) >>> 1;
+            ScanTask left = new ScanTask(segments, from, mid, fromTs, toTs, events);
+            left.fork();
+            HourlyCounterMap right = new ScanTask(segments, mid, to, fromTs, toTs, events).compute();
+            HourlyCounterMap result = left.join();
+            if (result.size() < right.size()) {
+                right.addAll(result);
+                return right;
+            }
+            result.addAll(right);
+            return result;
+        }
+
+        private HourlyCounterMap scan() {
+            HourlyCounterMap counters = new HourlyCounterMap();
+            if (from == to) {
+                return counters;
+            }
+            try {
+                long visited = EventLog.scan(segments.get(from), fromTs, toTs, (buf, offset) -> {
+                    boolean valid = EventRecord.status(buf, offset) == EventRecord.STATUS_VALID;
+                    counters.add(EventRecord.customerId(buf, offset), EventRecord.timestamp(buf, offset),
+                            valid ? 1 : 0, valid ? 0 : 1);
+                });
+                events.add(visited);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return counters;
+        }
+    }
+}
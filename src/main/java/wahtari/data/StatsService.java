@@ -3,51 +3,172 @@ package wahtari.data;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
-import org.springframework.transaction.annotation.Transactional;
+import wahtari.data.util.HourlyCounterMap;
+import wahtari.data.util.HourlyCounterRing;
+import wahtari.data.util.Ip4NetworkMap;
+import wahtari.data.util.MinuteCounterRing;
 
 import javax.sql.DataSource;
-import java.sql.Timestamp;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.time.Instant;
 import java.time.LocalDate;
 import java.time.temporal.ChronoUnit;
-import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Optional;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
 
 @Component
-public class StatsService {
+public class StatsService implements MessageCounter {
 
     private static final Logger log = LoggerFactory.getLogger(StatsService.class);
 
     record StatKey(Instant hour, int customerId) {}
+    record StatDelta(StatKey key, long requests, long invalid) {}
     record StatValue(AtomicLong requestCounter, AtomicLong invalidCounter) {
         static StatValue empty() {
             return new StatValue(new AtomicLong(), new AtomicLong());
         }
     }
 
-    private volatile ConcurrentHashMap<StatKey, StatValue> snapshot;
+    static final String UPSERT_SQL = """
+            insert into hourly_stats(customer_id, time, request_count, invalid_count)
+            values (?, ?, ?, ?)
+            on duplicate key update 
+            request_count = request_count + values(request_count),
+            invalid_count = invalid_count + values(invalid_count);
+            """;
+
+    private static final long HOUR_MS = 3_600_000L;
+    private static final int LIVE_MINUTES = 60;
+
+    // counters of the hours around now, indexed by customer slot
+    private final HourlyCounterRing ring;
+    private final CustomerSlots slots;
+    // per-minute counters of the last hour, indexed by customer slot, maintained by the live report
+    private final MinuteCounterRing live;
+    // late arrivals, and counters which could not be put into the ring
+    private volatile ConcurrentHashMap<StatKey, StatValue> late;
+    private final LongAdder lateCount = new LongAdder();
+    private final LongAdder outOfWindowCount = new LongAdder();
+    // indexed by block reason id
+    private final AtomicLongArray blockedCount = new AtomicLongArray(Ip4NetworkMap.MEMBER_MATCH + 1);
     private DataSource dataSource;
+    private final HourlyStatsWriter writer;
+    private final SnapshotSpill spill;
+
+    @Value("${snapshot.maxPendingKeys:1000000}")
+    private int maxPendingKeys;
+
+    @Value("${snapshot.retry.initialDelayMs:1000}")
+    private long retryInitialDelayMs;
+
+    @Value("${snapshot.retry.maxDelayMs:300000}")
+    private long retryMaxDelayMs;
+
+    private final int futureHours;
+
+    @Value("${stats.window.maxLateHours:720}")
+    private int maxLateHours;
 
-    public StatsService(@Autowired DataSource dataSource) {
+    // accessed by the scheduler thread only
+    private long retryDelayMs;
+    private long nextAttemptAt;
+
+    public StatsService(@Autowired DataSource dataSource, @Autowired HourlyStatsWriter writer,
+                        @Autowired CustomerSlots slots,
+                        @Value("${snapshot.spillDir:./data/spill}") String spillDir,
+                        @Value("${stats.window.pastHours:48}") int pastHours,
+                        @Value("${stats.window.futureHours:1}") int futureHours,
+                        @Value("${stats.customers.initial:1024}") int initialCustomers,
+                        @Value("${stats.customers.max:1048576}") int maxCustomers) {
         this.dataSource = dataSource;
-        snapshot = new ConcurrentHashMap<>();
+        this.writer = writer;
+        this.slots = slots;
+        this.spill = new SnapshotSpill(Path.of(spillDir));
+        this.futureHours = futureHours;
+        this.ring = new HourlyCounterRing(pastHours, futureHours, initialCustomers, maxCustomers);
+        this.live = new MinuteCounterRing(LIVE_MINUTES, initialCustomers, maxCustomers);
+        late = new ConcurrentHashMap<>();
     }
 
+    @Override
     public void markValid(long ts, int customerId) {
-        Instant hour = Instant.ofEpochSecond(ts).truncatedTo(ChronoUnit.HOURS);
-        StatKey key = new StatKey(hour, customerId);
-        snapshot.computeIfAbsent(key, k -> StatValue.empty()).requestCounter().incrementAndGet();
+        count(ts, customerId, 1, 0);
     }
 
+    @Override
     public void markInvalid(long ts, int customerId) {
-        Instant hour = Instant.ofEpochSecond(ts).truncatedTo(ChronoUnit.HOURS);
-        StatKey key = new StatKey(hour, customerId);
-        snapshot.computeIfAbsent(key, k -> StatValue.empty()).invalidCounter().incrementAndGet();
+        count(ts, customerId, 0, 1);
+    }
+
+    private void count(long ts, int customerId, long requests, long invalid) {
+        int slot = slots.slot(customerId);
+        if (slot != CustomerSlots.NO_SLOT) {
+            live.add(ts, slot, requests, invalid);
+        } else if (!slots.overflowed()) {
+            // not a customer of the last reload, the validators never count those
+            return;
+        }
+        if (ring.add(ts, slot, requests, invalid)) {
+            return;
+        }
+        long hour = Math.floorDiv(ts, 3600);
+        long currentHour = System.currentTimeMillis() / HOUR_MS;
+        if (hour < currentHour - maxLateHours || hour > currentHour + futureHours) {
+            outOfWindowCount.increment();
+            return;
+        }
+        StatKey key = new StatKey(Instant.ofEpochSecond(hour * 3600), customerId);
+        ConcurrentHashMap<StatKey, StatValue> lateMap = late;
+        if (lateMap.size() >= maxPendingKeys && !lateMap.containsKey(key)) {
+            outOfWindowCount.increment();
+            return;
+        }
+        StatValue value = lateMap.computeIfAbsent(key, k -> StatValue.empty());
+        value.requestCounter().addAndGet(requests);
+        value.invalidCounter().addAndGet(invalid);
+        lateCount.increment();
+    }
+
+    /**
+     * @return number of counted events which were outside of the hour ring
+     */
+    public long lateCount() {
+        return lateCount.sum();
+    }
+
+    /**
+     * @return number of events which were not counted because of their timestamps
+     */
+    public long outOfWindowCount() {
+        return outOfWindowCount.sum();
+    }
+
+    public MinuteCounterRing live() {
+        return live;
+    }
+
+    @Override
+    public void markBlocked(int reasonId) {
+        blockedCount.incrementAndGet(reasonId);
+    }
+
+    /**
+     * @return number of requests from addresses blacklisted for the reason, rejected or not
+     */
+    public long blockedCount(int reasonId) {
+        return blockedCount.get(reasonId);
     }
 
     public List<HourlyInfo> getReport(LocalDate date, int customerId) {
@@ -63,9 +184,11 @@ public class StatsService {
 
         // append snapshot values
         Instant currentHour = Instant.now().truncatedTo(ChronoUnit.HOURS);
-        StatValue statValue = snapshot.get(new StatKey(currentHour, customerId));
-        if (statValue != null) {
-            results.add(new HourlyInfo(customerId, currentHour, statValue.requestCounter().get(), statValue.invalidCounter().get()));
+        int slot = slots.slot(customerId);
+        long requests = ring.requests(currentHour.getEpochSecond(), slot);
+        long invalid = ring.invalid(currentHour.getEpochSecond(), slot);
+        if (requests != 0 || invalid != 0) {
+            results.add(new HourlyInfo(customerId, currentHour, requests, invalid));
         }
 
         return results;
@@ -73,41 +196,144 @@ public class StatsService {
 
     @Scheduled(fixedDelayString = "${snapshot.delayMs:10000}")
     public void storeSnapshotJob() {
+        long now = System.currentTimeMillis();
+        List<StatDelta> expired = new ArrayList<>();
+        ring.rotate(now, slotCollector(expired));
+        restore(expired);
+
+        if (now < nextAttemptAt) {
+            // DB is unavailable, keep counting in memory up to the limit
+            if (late.size() > maxPendingKeys) {
+                spill(drainLate(new ArrayList<>()));
+            }
+            return;
+        }
         try {
             storeSnapshot();
+            if (retryDelayMs > 0) {
+                log.info("Stat snapshot stored after a failure");
+            }
+            retryDelayMs = 0;
+            nextAttemptAt = 0;
+            storeSpilled();
         } catch (Exception e) {
-            log.error("failed to store stat snapshot", e);
+            retryDelayMs = retryDelayMs == 0 ? retryInitialDelayMs : Math.min(retryDelayMs * 2, retryMaxDelayMs);
+            nextAttemptAt = now + retryDelayMs;
+            log.error("failed to store stat snapshot, next attempt in {} ms", retryDelayMs, e);
         }
     }
 
-    @Transactional
+    /**
+     * Stores the current snapshot. Rows which failed to be committed are put back
+     * into the ring or the late map, or spilled to disk if the late map is over its limit.
+     */
     public void storeSnapshot() {
-        ConcurrentHashMap<StatKey, StatValue> snapshotToStore = snapshot;
-        snapshot = new ConcurrentHashMap<>();
+        List<StatDelta> deltas = drainSnapshot();
 
         if (log.isTraceEnabled()) {
-            log.trace("Storing snapshot to DB: {}", snapshotToStore);
+            log.trace("Storing snapshot to DB: {}", deltas);
         }
+        store(deltas, this::restore, "snapshot");
+    }
 
-        JdbcTemplate jdbc = new JdbcTemplate(dataSource);
-        String sql = """
-                    insert into hourly_stats(customer_id, time, request_count, invalid_count)
-                    values (?, ?, ?, ?)
-                    on duplicate key update 
-                    request_count = request_count + values(request_count),
-                    invalid_count = invalid_count + values(invalid_count);
-                    """;
-        int[][] rowsAffected = jdbc.batchUpdate(sql, snapshotToStore.entrySet(), snapshotToStore.size(),
-                (ps, arg) -> {
-                    StatKey key = arg.getKey();
-                    StatValue value = arg.getValue();
-                    ps.setInt(1, key.customerId());
-                    ps.setTimestamp(2, Timestamp.from(key.hour()));
-                    ps.setLong(3, value.requestCounter().get());
-                    ps.setLong(4, value.invalidCounter().get());
-                });
-        if (log.isDebugEnabled()) {
-            log.debug("Stored snapshot to DB, rowsAffected: {}", Arrays.deepToString(rowsAffected));
+    /**
+     * Deltas which failed to be committed are passed to {@code onFailure}.
+     */
+    private void store(List<StatDelta> deltas, Consumer<List<StatDelta>> onFailure, String source) {
+        SnapshotFlushEvent event = new SnapshotFlushEvent();
+        event.begin();
+        try {
+            writer.write(deltas);
+        } catch (HourlyStatsWriter.FlushException e) {
+            event.failedRows = e.failed().size();
+            onFailure.accept(e.failed());
+            throw e;
+        } finally {
+            event.end();
+            if (!deltas.isEmpty() && event.shouldCommit()) {
+                event.source = source;
+                event.rows = deltas.size();
+                event.commit();
+            }
+        }
+    }
+
+    private List<StatDelta> drainSnapshot() {
+        List<StatDelta> deltas = new ArrayList<>();
+        HourlyCounterMap.Visitor collector = slotCollector(deltas);
+        ring.ensureCapacity(collector);
+        ring.drain(collector);
+        return drainLate(deltas);
+    }
+
+    private List<StatDelta> drainLate(List<StatDelta> deltas) {
+        ConcurrentHashMap<StatKey, StatValue> lateToStore = late;
+        late = new ConcurrentHashMap<>();
+
+        lateToStore.forEach((key, value) ->
+                deltas.add(new StatDelta(key, value.requestCounter().get(), value.invalidCounter().get())));
+        return deltas;
+    }
+
+    // visits counters of the ring, which are indexed by customer slot
+    private HourlyCounterMap.Visitor slotCollector(List<StatDelta> deltas) {
+        return (slot, hour, requests, invalid) -> deltas.add(
+                new StatDelta(new StatKey(Instant.ofEpochSecond(hour), slots.customerId(slot)), requests, invalid));
+    }
+
+    /**
+     * Puts deltas back into the ring, or into the late map, which is spilled if it is over its limit.
+     */
+    private void restore(List<StatDelta> deltas) {
+        for (StatDelta delta : deltas) {
+            StatKey key = delta.key();
+            int slot = slots.slot(key.customerId());
+            if (slot != CustomerSlots.NO_SLOT
+                    && ring.add(key.hour().getEpochSecond(), slot, delta.requests(), delta.invalid())) {
+                continue;
+            }
+            StatValue value = late.computeIfAbsent(key, k -> StatValue.empty());
+            value.requestCounter().addAndGet(delta.requests());
+            value.invalidCounter().addAndGet(delta.invalid());
+        }
+        if (late.size() > maxPendingKeys) {
+            spill(drainLate(new ArrayList<>()));
+        }
+    }
+
+    private void spill(List<StatDelta> deltas) {
+        try {
+            spill.write(deltas);
+        } catch (IOException e) {
+            log.error("failed to spill {} stat deltas, they are lost", deltas.size(), e);
+        }
+    }
+
+    /**
+     * Stores the oldest spilled file, one file per run. What fails to be stored is spilled again.
+     * Unreadable files are set aside, so that they don't block the newer ones.
+     */
+    private void storeSpilled() throws IOException {
+        Optional<Path> file;
+        List<StatDelta> deltas;
+        while (true) {
+            file = spill.oldest();
+            if (file.isEmpty()) {
+                return;
+            }
+            try {
+                deltas = SnapshotSpill.read(file.get());
+                break;
+            } catch (IOException e) {
+                Path quarantined = spill.quarantine(file.get());
+                log.error("Spill file {} is unreadable, moved to {}", file.get(), quarantined, e);
+            }
+        }
+        try {
+            store(deltas, this::spill, "spill");
+            log.info("Stored {} spilled stat deltas from {}", deltas.size(), file.get());
+        } finally {
+            Files.delete(file.get());
         }
     }
 }
@@ -1,16 +1,14 @@
 package wahtari.data.util;
 
-// Java Collections are used only during the building of the automaton.
-// The automaton itself uses only the primitive data types
-// and does not produce garbage during the matching.
+// The automaton uses only primitive arrays and does not produce garbage during the matching.
+// The construction grows its sparse trie incrementally, so the peak memory stays close
+// to the size of the final automaton.
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashSet;
+import java.util.BitSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Queue;
-import java.util.Set;
-import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Implementation of the Aho-Corasick string matching algorithm, described in
@@ -22,244 +20,389 @@ import java.util.concurrent.atomic.AtomicBoolean;
  * only on the primitive data types in order to avoid Autoboxing and Unboxing
  * conversions.
  *
- * @author of the implementation is Yurii Lahodiuk (yura.lagodiuk@gmail.com)
+ * The transitions are stored as a double array: a transition from state {@code s} on the
+ * character code {@code c} leads to {@code t = base[s] + c} if {@code check[t] == s}.
+ * States are built as a sparse trie (a child list per state) first, then placed into the double array.
+ * Matched patterns are found through dictionary suffix links instead of per-state output lists.
+ *
+ * @author of the original implementation is Yurii Lahodiuk (yura.lagodiuk@gmail.com)
  */
 public class AhoCorasickOptimized {
 
-    private static final int INITIAL_STATE = 0;
-    private static final int FAIL = -1;
+    // owner of patterns which apply to everyone
+    public static final int GLOBAL = 0;
 
-    // the sorted array of the unique characters (alphabet)
-    // every character from the alphabet is "mapped" to it's own index inside
-    // this array
-    // mapping: "character" -> "character index"
+    private static final int INITIAL_STATE = 0;
+    private static final int NONE = -1;
+    // character codes of the double array start at 1, 0 stands for characters outside of the alphabet
+    private static final int ABSENT_CHAR = 0;
+    private static final int ASCII = 128;
+    // failed bases after which the placement stops searching the holes before the last one tried
+    private static final int MAX_PLACEMENT_MISSES = 32;
+
+    // the sorted array of the unique characters (alphabet),
+    // character code = index inside this array + 1
     private char[] charToIntMapping;
-    // every character, which is not inside the alphabet is mapped to this
-    // special index
-    private int absentCharInt;
-
-    // the automaton transitions table
-    // mapping: "current state AND input character index" -> "new state"
-    private int[][] goTo;
-    // table of the outputs of every state
-    // mapping: "state" -> "matched patterns"
-    private List<String>[] output;
+    // character codes of ASCII characters, to skip the binary search
+    private final int[] asciiCodes = new int[ASCII];
+
+    // the double array of transitions
+    // mapping: "state AND character code" -> "new state"
+    private int[] base;
+    private int[] check;
     // table of the fail transitions of the automaton
     // mapping: "state" -> "new state"
     private int[] fail;
+    // first pattern ending in the state, or NONE
+    // mapping: "state" -> "pattern index"
+    private int[] patternAt;
+    // nearest state on the fail chain where a pattern ends, or NONE
+    // mapping: "state" -> "state"
+    private int[] outputLink;
+    // further patterns ending in the same state, i.e. duplicates
+    // mapping: "pattern index" -> "pattern index"
+    private int[] patternNext;
+    // owners of the patterns ending in a state, keyed by the first of them, GLOBAL ones as a flag,
+    // the others as a sorted range of the owners array, so a lookup doesn't walk the duplicates
+    // mapping: "pattern index" -> "global", "owners range"
+    private BitSet globalPattern;
+    private int[] ownerFrom;
+    private int[] ownerTo;
+    private int[] owners;
+
+    private final String[] patterns;
+    private final int[] patternOwners;
+    private int stateCount;
 
     public AhoCorasickOptimized(String... patterns) {
-
-        this.initializeCharToIntMapping(patterns);
-        this.absentCharInt = this.charToIntMapping.length;
-
-        int maxAmountOfStates = this.getMaxPossibleAmountOfStates(patterns);
-
-        this.initializeTransitionsTable(maxAmountOfStates);
-        this.initializeOutputTable(maxAmountOfStates);
-        this.initializeFailureTransitions(maxAmountOfStates);
-
-        int actualStatesCount = this.calculateTransitionsTable(patterns);
-
-        this.adjustTransitionsTableSize(actualStatesCount);
-        this.adjustOutputTableSize(actualStatesCount);
-        this.adjustFailureTransitionsSize(actualStatesCount);
-
-        this.makeInitialStateNeverFail();
-        this.calculateFailureTransitions();
+        this(patterns, null);
     }
 
-    public void adjustFailureTransitionsSize(int actualStatesCount) {
-        if (actualStatesCount == this.fail.length) {
-            return;
-        }
-        int[] adjustedFail = new int[actualStatesCount];
-        System.arraycopy(this.fail, 0, adjustedFail, 0, actualStatesCount);
-        this.fail = adjustedFail;
-    }
-
-    public void adjustOutputTableSize(int actualStatesCount) {
-        if (actualStatesCount == this.output.length) {
-            return;
-        }
-        @SuppressWarnings("unchecked")
-        List<String>[] adjustedOutput = new List[actualStatesCount];
-        System.arraycopy(this.output, 0, adjustedOutput, 0, actualStatesCount);
-        this.output = adjustedOutput;
-    }
+    /**
+     * @param patternOwners owner of each pattern, e.g. a customer id, or {@link #GLOBAL};
+     *                      all patterns are global if null
+     */
+    public AhoCorasickOptimized(String[] patterns, int[] patternOwners) {
+        this.patterns = patterns;
+        this.patternOwners = patternOwners;
 
-    public void adjustTransitionsTableSize(int actualStatesCount) {
-        if (actualStatesCount == this.goTo.length) {
-            return;
+        this.initializeCharToIntMapping(patterns);
+        SparseTrie trie = new SparseTrie(patterns.length * 4 + 1);
+        this.patternNext = new int[patterns.length];
+        for (int p = 0; p < patterns.length; p++) {
+            int state = trie.insert(patterns[p], this);
+            this.patternNext[p] = trie.terminal[state];
+            trie.terminal[state] = p;
         }
-        int[][] adjustedGoTo = new int[actualStatesCount][this.charToIntMapping.length + 1];
-        for (int i = 0; i < actualStatesCount; i++) {
-            adjustedGoTo[i] = this.goTo[i];
+        if (patternOwners != null) {
+            this.indexOwners(trie);
         }
-        this.goTo = adjustedGoTo;
+        this.stateCount = trie.size;
+        this.build(trie);
     }
 
-    public final void match(final String text, MatchCallback callback) {
+    public final void match(final CharSequence text, MatchCallback callback) {
 
         int state = INITIAL_STATE;
 
         for (int ci = 0; ci < text.length(); ci++) {
+            state = this.next(state, this.code(text.charAt(ci)));
 
-            char chr = text.charAt(ci);
-            int char2IntMappingIndex = Arrays.binarySearch(this.charToIntMapping, chr);
-            int chrInt = char2IntMappingIndex < 0 ? this.absentCharInt : char2IntMappingIndex;
-
-            while (this.goTo[state][chrInt] == FAIL) {
-                state = this.fail[state];
+            int output = this.patternAt[state] != NONE ? state : this.outputLink[state];
+            for (; output != NONE; output = this.outputLink[output]) {
+                for (int p = this.patternAt[output]; p != NONE; p = this.patternNext[p]) {
+                    String found = this.patterns[p];
+                    callback.onMatch((ci - found.length()) + 1, ci, found);
+                }
             }
+        }
+    }
 
-            state = this.goTo[state][chrInt];
+    public boolean match(final CharSequence text) {
 
-            List<String> matched = this.output[state];
-            for (int j = 0; j < matched.size(); j++) {
-                String found = matched.get(j);
-                callback.onMatch((ci - found.length()) + 1, ci, found);
+        int state = INITIAL_STATE;
+
+        for (int ci = 0; ci < text.length(); ci++) {
+            state = this.next(state, this.code(text.charAt(ci)));
+            if (this.patternAt[state] != NONE || this.outputLink[state] != NONE) {
+                return true;
             }
         }
+        return false;
     }
 
-    public boolean match(final String text) {
-        AtomicBoolean result = new AtomicBoolean();
-        match(text, (startPosition, endPosition, matched) -> result.set(true));
-        return result.get();
+    /**
+     * @return true if the text contains a pattern which is global or owned by the owner
+     */
+    public boolean match(final CharSequence text, int owner) {
+        if (this.patternOwners == null) {
+            return this.match(text);
+        }
+
+        int state = INITIAL_STATE;
+
+        for (int ci = 0; ci < text.length(); ci++) {
+            state = this.next(state, this.code(text.charAt(ci)));
+
+            int output = this.patternAt[state] != NONE ? state : this.outputLink[state];
+            for (; output != NONE; output = this.outputLink[output]) {
+                int p = this.patternAt[output];
+                if (this.globalPattern.get(p)
+                        || Arrays.binarySearch(this.owners, this.ownerFrom[p], this.ownerTo[p], owner) >= 0) {
+                    return true;
+                }
+            }
+        }
+        return false;
     }
 
-    @SuppressWarnings("unchecked")
-    private void initializeOutputTable(int maxAmountOfStates) {
-        this.output = new List[maxAmountOfStates];
-        for (int i = 0; i < this.output.length; i++) {
-            this.output[i] = new ArrayList<>();
+    private void indexOwners(SparseTrie trie) {
+        this.globalPattern = new BitSet(this.patterns.length);
+        this.ownerFrom = new int[this.patterns.length];
+        this.ownerTo = new int[this.patterns.length];
+        this.owners = new int[this.patterns.length];
+        int size = 0;
+        for (int state = 0; state < trie.size; state++) {
+            int first = trie.terminal[state];
+            if (first == NONE) {
+                continue;
+            }
+            int from = size;
+            for (int p = first; p != NONE; p = this.patternNext[p]) {
+                if (this.patternOwners[p] == GLOBAL) {
+                    this.globalPattern.set(first);
+                } else {
+                    this.owners[size++] = this.patternOwners[p];
+                }
+            }
+            Arrays.sort(this.owners, from, size);
+            // drop the duplicate owners
+            int to = from;
+            for (int i = from; i < size; i++) {
+                if (i == from || this.owners[i] != this.owners[to - 1]) {
+                    this.owners[to++] = this.owners[i];
+                }
+            }
+            size = to;
+            this.ownerFrom[first] = from;
+            this.ownerTo[first] = to;
         }
+        this.owners = Arrays.copyOf(this.owners, size);
     }
 
-    private void initializeFailureTransitions(int maxAmountOfStates) {
-        this.fail = new int[maxAmountOfStates];
-        Arrays.fill(this.fail, FAIL);
-        this.fail[INITIAL_STATE] = INITIAL_STATE;
+    public int stateCount() {
+        return this.stateCount;
     }
 
-    private void initializeTransitionsTable(int maxAmountOfStates) {
-        this.goTo = new int[maxAmountOfStates][this.charToIntMapping.length + 1];
-        for (int[] row : this.goTo) {
-            Arrays.fill(row, FAIL);
+    private int code(char chr) {
+        if (chr < ASCII) {
+            return this.asciiCodes[chr];
         }
+        int index = Arrays.binarySearch(this.charToIntMapping, chr);
+        return index < 0 ? ABSENT_CHAR : index + 1;
     }
 
-    private void makeInitialStateNeverFail() {
-        for (int i = 0; i < this.goTo[INITIAL_STATE].length; i++) {
-            if (this.goTo[INITIAL_STATE][i] == FAIL) {
-                this.goTo[INITIAL_STATE][i] = INITIAL_STATE;
-            }
+    private int transition(int state, int code) {
+        if (code == ABSENT_CHAR) {
+            return NONE;
         }
+        int target = this.base[state] + code;
+        return target < this.check.length && this.check[target] == state ? target : NONE;
     }
 
-    private int getMaxPossibleAmountOfStates(String... patterns) {
-        int maxAmountOfStates = 1;
-        for (String s : patterns) {
-            maxAmountOfStates += s.length();
+    private int next(int state, int code) {
+        while (true) {
+            int target = this.transition(state, code);
+            if (target != NONE) {
+                return target;
+            }
+            if (state == INITIAL_STATE) {
+                // the initial state never fails
+                return INITIAL_STATE;
+            }
+            state = this.fail[state];
         }
-        return maxAmountOfStates;
     }
 
     private void initializeCharToIntMapping(String... patterns) {
-        Set<Character> uniqueChars = new HashSet<>();
+        BitSet uniqueChars = new BitSet(ASCII);
         for (String s : patterns) {
-            for (char c : s.toCharArray()) {
-                uniqueChars.add(c);
+            for (int i = 0; i < s.length(); i++) {
+                uniqueChars.set(s.charAt(i));
             }
         }
-        this.charToIntMapping = new char[uniqueChars.size()];
+        this.charToIntMapping = new char[uniqueChars.cardinality()];
         int charToIntMappingIdx = 0;
-        for (char c : uniqueChars) {
-            this.charToIntMapping[charToIntMappingIdx] = c;
+        for (int c = uniqueChars.nextSetBit(0); c >= 0; c = uniqueChars.nextSetBit(c + 1)) {
+            this.charToIntMapping[charToIntMappingIdx] = (char) c;
+            if (c < ASCII) {
+                this.asciiCodes[c] = charToIntMappingIdx + 1;
+            }
             charToIntMappingIdx++;
         }
-        Arrays.sort(this.charToIntMapping);
     }
 
-    // Calculation of the failure transitions using BFS
-    private void calculateFailureTransitions() {
-
-        Queue<Integer> queue = new LinkedList<>();
+    /**
+     * Trie with a linked list of children per state, grown on demand.
+     */
+    private static final class SparseTrie {
+        int[] firstChild;
+        int[] nextSibling;
+        // character code of the transition into the state
+        int[] label;
+        // last pattern ending in the state, or NONE
+        int[] terminal;
+        int size = 1;
+
+        SparseTrie(int capacity) {
+            firstChild = new int[capacity];
+            nextSibling = new int[capacity];
+            label = new int[capacity];
+            terminal = new int[capacity];
+            firstChild[INITIAL_STATE] = NONE;
+            nextSibling[INITIAL_STATE] = NONE;
+            terminal[INITIAL_STATE] = NONE;
+        }
 
-        // all states of depth 1 (counting from the initial state)
-        // have failure transition to the initial state
-        for (int stateReachableFromInitial : this.goTo[INITIAL_STATE]) {
-            if (stateReachableFromInitial != INITIAL_STATE) {
-                queue.add(stateReachableFromInitial);
-                this.fail[stateReachableFromInitial] = INITIAL_STATE;
+        int insert(String pattern, AhoCorasickOptimized automaton) {
+            int state = INITIAL_STATE;
+            for (int ci = 0; ci < pattern.length(); ci++) {
+                int code = automaton.code(pattern.charAt(ci));
+                int child = firstChild[state];
+                while (child != NONE && label[child] != code) {
+                    child = nextSibling[child];
+                }
+                if (child == NONE) {
+                    child = newState(code);
+                    nextSibling[child] = firstChild[state];
+                    firstChild[state] = child;
+                }
+                state = child;
             }
+            return state;
         }
 
-        while (!queue.isEmpty()) {
-            int curr = queue.remove();
-
-            for (int chrInt = 0; chrInt < this.goTo[curr].length; chrInt++) {
-
-                int stateReachableFromCurr = this.goTo[curr][chrInt];
-
-                if (stateReachableFromCurr != FAIL) {
-                    queue.add(stateReachableFromCurr);
-
-                    int state = this.fail[curr];
-                    while (this.goTo[state][chrInt] == FAIL) {
-                        state = this.fail[state];
-                    }
-
-                    this.fail[stateReachableFromCurr] = this.goTo[state][chrInt];
-                    this.output[stateReachableFromCurr].addAll(
-                            this.output[this.fail[stateReachableFromCurr]]);
-                }
+        private int newState(int code) {
+            if (size == firstChild.length) {
+                int capacity = size * 2;
+                firstChild = Arrays.copyOf(firstChild, capacity);
+                nextSibling = Arrays.copyOf(nextSibling, capacity);
+                label = Arrays.copyOf(label, capacity);
+                terminal = Arrays.copyOf(terminal, capacity);
             }
+            int state = size++;
+            firstChild[state] = NONE;
+            terminal[state] = NONE;
+            label[state] = code;
+            return state;
         }
     }
 
-    private int calculateTransitionsTable(String... patterns) {
-
-        int newState = 0;
-        for (String s : patterns) {
-
-            int state = INITIAL_STATE;
-
-            // index of the current character
-            int ci = 0;
-
-            // traversal through the states, which are already created
-            while (ci < s.length()) {
-                char chr = s.charAt(ci);
-                int chrInt = Arrays.binarySearch(this.charToIntMapping, chr);
-
-                if (this.goTo[state][chrInt] != FAIL) {
-                    state = this.goTo[state][chrInt];
-                    ci++;
-                } else {
+    /**
+     * Places the trie states into the double array in BFS order, then calculates the failure transitions.
+     */
+    private void build(SparseTrie trie) {
+        int capacity = Math.max(trie.size + this.charToIntMapping.length + 1, 16);
+        this.base = new int[capacity];
+        this.check = new int[capacity];
+        Arrays.fill(this.check, NONE);
+        BitSet used = new BitSet(capacity);
+        used.set(INITIAL_STATE);
+        int firstFree = 1;
+
+        // BFS order of the trie states, and their positions in the double array
+        int[] order = new int[trie.size];
+        int[] position = new int[trie.size];
+        int[] codes = new int[this.charToIntMapping.length];
+        order[0] = INITIAL_STATE;
+        position[INITIAL_STATE] = INITIAL_STATE;
+        int tail = 1;
+
+        for (int head = 0; head < tail; head++) {
+            int state = order[head];
+            int children = 0;
+            for (int child = trie.firstChild[state]; child != NONE; child = trie.nextSibling[child]) {
+                codes[children++] = trie.label[child];
+            }
+            if (children == 0) {
+                continue;
+            }
+            Arrays.sort(codes, 0, children);
+
+            // first fit: the lowest base for which the positions of all children are free
+            firstFree = used.nextClearBit(firstFree);
+            int b = Math.max(1, firstFree - codes[0]);
+            int misses = 0;
+            while (true) {
+                while (used.get(b + codes[0])) {
+                    b = used.nextClearBit(b + codes[0]) - codes[0];
+                }
+                int i = 1;
+                while (i < children && !used.get(b + codes[i])) {
+                    i++;
+                }
+                if (i == children) {
                     break;
                 }
+                if (++misses == MAX_PLACEMENT_MISSES) {
+                    // the front is too dense to be worth scanning again, its holes stay unused
+                    firstFree = b + codes[0];
+                }
+                b++;
             }
 
-            // creation of the new states
-            while (ci < s.length()) {
-                char chr = s.charAt(ci);
-                int chrInt = Arrays.binarySearch(this.charToIntMapping, chr);
-
-                newState = newState + 1;
-                this.goTo[state][chrInt] = newState;
-                state = newState;
-
-                ci++;
+            int last = b + codes[children - 1];
+            if (last >= this.check.length) {
+                int newCapacity = Math.max(last + 1, this.check.length * 2);
+                this.base = Arrays.copyOf(this.base, newCapacity);
+                int oldLength = this.check.length;
+                this.check = Arrays.copyOf(this.check, newCapacity);
+                Arrays.fill(this.check, oldLength, newCapacity, NONE);
             }
+            int from = position[state];
+            this.base[from] = b;
+            for (int child = trie.firstChild[state]; child != NONE; child = trie.nextSibling[child]) {
+                int to = b + trie.label[child];
+                this.check[to] = from;
+                used.set(to);
+                position[child] = to;
+                order[tail++] = child;
+            }
+        }
 
-            // remember current pattern as the output for the last processed
-            // state
-            this.output[state].add(s);
+        int length = used.length();
+        this.base = Arrays.copyOf(this.base, length);
+        this.check = Arrays.copyOf(this.check, length);
+        this.patternAt = new int[length];
+        Arrays.fill(this.patternAt, NONE);
+        for (int state = 0; state < trie.size; state++) {
+            this.patternAt[position[state]] = trie.terminal[state];
         }
 
-        return newState + 1;
+        this.calculateFailureTransitions(trie, order, position);
+    }
+
+    // Calculation of the failure transitions using BFS
+    private void calculateFailureTransitions(SparseTrie trie, int[] order, int[] position) {
+        int length = this.check.length;
+        this.fail = new int[length];
+        this.outputLink = new int[length];
+        Arrays.fill(this.outputLink, NONE);
+
+        for (int i = 0; i < trie.size; i++) {
+            int state = order[i];
+            int curr = position[state];
+            for (int child = trie.firstChild[state]; child != NONE; child = trie.nextSibling[child]) {
+                int reachable = position[child];
+                int failTo = INITIAL_STATE;
+                if (curr != INITIAL_STATE) {
+                    // all states of depth 1 have failure transition to the initial state
+                    failTo = this.next(this.fail[curr], trie.label[child]);
+                }
+                this.fail[reachable] = failTo;
+                this.outputLink[reachable] = this.patternAt[failTo] != NONE ? failTo : this.outputLink[failTo];
+            }
+        }
     }
 
     public String generateGraphvizAutomatonRepresentation(boolean displayEdgesToInitialState) {
@@ -298,11 +441,9 @@ public class AhoCorasickOptimized {
                 visitedStates.add(state);
 
                 for (int charInt = 0; charInt < automaton.charToIntMapping.length; charInt++) {
-
-                    if ((automaton.goTo[state][charInt] != FAIL)
-                            && (automaton.goTo[state][charInt] != INITIAL_STATE)) {
-
-                        queue.add(automaton.goTo[state][charInt]);
+                    int target = automaton.transition(state, charInt + 1);
+                    if (target != NONE) {
+                        queue.add(target);
 
                         appendAutomatonTransitionGraphviz(automaton, sb, state, charInt);
                     }
@@ -324,7 +465,7 @@ public class AhoCorasickOptimized {
                 int state,
                 int charInt) {
 
-            sb.append(TAB).append(state).append(" -> ").append(automaton.goTo[state][charInt])
+            sb.append(TAB).append(state).append(" -> ").append(automaton.transition(state, charInt + 1))
                     .append(" [label=").append(automaton.charToIntMapping[charInt])
                     .append(", weight=100, style=bold];").append(NEW_LINE);
         }
@@ -335,7 +476,7 @@ public class AhoCorasickOptimized {
                 List<Integer> visitedStates) {
 
             for (int state : visitedStates) {
-                if (!automaton.output[state].isEmpty()) {
+                if (automaton.patternAt[state] != NONE || automaton.outputLink[state] != NONE) {
                     sb.append(TAB).append(state)
                             .append(STYLE_STATE_WITH_OUTPUT).append(NEW_LINE);
                 } else {
@@ -0,0 +1,58 @@
+package wahtari.data.util;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of direct (or heap) buffers of the same capacity. Buffers are allocated on demand,
+ * at most {@code maxIdle} released buffers are kept for reuse and the rest is left to the garbage collector.
+ *
+ * Meant for buffers which are held only while there is data in flight, so that idle connections
+ * or requests don't pin direct memory.
+ */
+public class BufferPool {
+
+    private final int bufferSize;
+    private final int maxIdle;
+    private final boolean direct;
+    private final ConcurrentLinkedQueue<ByteBuffer> idle = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+
+    public BufferPool(int bufferSize, int maxIdle) {
+        this(bufferSize, maxIdle, true);
+    }
+
+    /**
+     * @param direct false for heap buffers, e.g. for codecs working on their arrays
+     */
+    public BufferPool(int bufferSize, int maxIdle, boolean direct) {
+        this.bufferSize = bufferSize;
+        this.maxIdle = maxIdle;
+        this.direct = direct;
+    }
+
+    /**
+     * @return a cleared buffer
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = idle.poll();
+        if (buffer == null) {
+            return direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+        }
+        idleCount.decrementAndGet();
+        return buffer;
+    }
+
+    public void release(ByteBuffer buffer) {
+        if (idleCount.incrementAndGet() > maxIdle) {
+            idleCount.decrementAndGet();
+            return;
+        }
+        idle.offer(buffer.clear());
+    }
+
+    public int bufferSize() {
+        return bufferSize;
+    }
+}
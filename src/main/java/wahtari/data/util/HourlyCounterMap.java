@@ -0,0 +1,113 @@
+package wahtari.data.util;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing hash map from (customer id, hour) to a pair of counters,
+ * backed by primitive arrays only.
+ */
+public class HourlyCounterMap {
+
+    private static final long EMPTY = Long.MIN_VALUE;
+    private static final int DEFAULT_CAPACITY = 1024;
+
+    private long[] keys;
+    private long[] requests;
+    private long[] invalid;
+    private int size;
+
+    public interface Visitor {
+        void visit(int customerId, long hourEpochSecond, long requests, long invalid);
+    }
+
+    public HourlyCounterMap() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public HourlyCounterMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(expectedSize, 8) * 2 - 1) << 1;
+        allocate(capacity);
+    }
+
+    /**
+     * @param epochSecond any second of the hour, the key is truncated to the hour
+     */
+    public void add(int customerId, long epochSecond, long requestCount, long invalidCount) {
+        add(key(customerId, epochSecond), requestCount, invalidCount);
+    }
+
+    private void add(long key, long requestCount, long invalidCount) {
+        if ((size + 1) * 2 > keys.length) {
+            rehash();
+        }
+        int mask = keys.length - 1;
+        int idx = mix(key) & mask;
+        while (keys[idx] != EMPTY && keys[idx] != key) {
+            idx = (idx + 1) & mask;
+        }
+        if (keys[idx] == EMPTY) {
+            keys[idx] = key;
+            size++;
+        }
+        requests[idx] += requestCount;
+        invalid[idx] += invalidCount;
+    }
+
+    public void addAll(HourlyCounterMap other) {
+        for (int i = 0; i < other.keys.length; i++) {
+            if (other.keys[i] != EMPTY) {
+                add(other.keys[i], other.requests[i], other.invalid[i]);
+            }
+        }
+    }
+
+    public void forEach(Visitor visitor) {
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != EMPTY) {
+                visitor.visit(customerId(keys[i]), hour(keys[i]), requests[i], invalid[i]);
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private void rehash() {
+        long[] oldKeys = keys;
+        long[] oldRequests = requests;
+        long[] oldInvalid = invalid;
+        allocate(oldKeys.length * 2);
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) {
+                add(oldKeys[i], oldRequests[i], oldInvalid[i]);
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        requests = new long[capacity];
+        invalid = new long[capacity];
+        Arrays.fill(keys, EMPTY);
+    }
+
+    // hours since epoch fit into the upper half of the key for the next few hundred thousand years
+    private static long key(int customerId, long epochSecond) {
+        return Math.floorDiv(epochSecond, 3600) << 32 | (customerId & 0xffffffffL);
+    }
+
+    private static int customerId(long key) {
+        return (int) key;
+    }
+
+    private static long hour(long key) {
+        return (key >> 32) * 3600;
+    }
+
+    private static int mix(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
@@ -0,0 +1,170 @@
+package wahtari.data.util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed ring of hour slots around the current hour, each slot holds a pair of counters per customer.
+ * Both the slot and the counters are found by arithmetic: {@code slot = hour mod slots},
+ * {@code counter = 2 * customer}, so counting neither hashes nor allocates. Customers are dense indexes,
+ * e.g. {@code CustomerSlots}, so that the arrays are sized by the number of customers, not by their ids.
+ *
+ * Counting methods may be called from any thread. {@link #rotate}, {@link #drain} and
+ * {@link #ensureCapacity} must be called from a single maintenance thread.
+ *
+ * A slot is reused for a new hour only after its old hour has been outside of the accepted
+ * window for {@link #SPARE_SLOTS} hours, so counting threads never see a slot changing its hour.
+ */
+public class HourlyCounterRing {
+
+    private static final int SPARE_SLOTS = 2;
+    private static final long HOUR_MS = 3_600_000L;
+
+    private static class Slot {
+        volatile long hour = Long.MIN_VALUE;
+        volatile AtomicLongArray counters;
+        // replaced by a larger array, drained once more before it is dropped
+        AtomicLongArray retired;
+        volatile boolean dirty;
+
+        Slot(int customers) {
+            counters = new AtomicLongArray(customers * 2);
+        }
+    }
+
+    private final Slot[] slots;
+    private final int pastHours;
+    private final int futureHours;
+    private final int maxCustomers;
+    private final AtomicInteger requestedCustomers = new AtomicInteger();
+
+    public HourlyCounterRing(int pastHours, int futureHours, int initialCustomers, int maxCustomers) {
+        this.pastHours = pastHours;
+        this.futureHours = futureHours;
+        this.maxCustomers = maxCustomers;
+        this.slots = new Slot[pastHours + futureHours + 1 + SPARE_SLOTS];
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = new Slot(initialCustomers);
+        }
+        rotate(System.currentTimeMillis(), (customer, hour, requests, invalid) -> {});
+    }
+
+    /**
+     * @return false if the hour is outside of the window or the customer is out of range,
+     * then nothing is counted
+     */
+    public boolean add(long epochSecond, int customer, long requests, long invalid) {
+        long hour = Math.floorDiv(epochSecond, 3600);
+        long currentHour = System.currentTimeMillis() / HOUR_MS;
+        if (hour < currentHour - pastHours || hour > currentHour + futureHours) {
+            return false;
+        }
+        Slot slot = slots[Math.floorMod(hour, slots.length)];
+        if (slot.hour != hour) {
+            // not rotated yet
+            return false;
+        }
+        AtomicLongArray counters = slot.counters;
+        if (customer < 0 || customer * 2L + 1 >= counters.length()) {
+            requestedCustomers.accumulateAndGet(customer + 1, Math::max);
+            return false;
+        }
+        if (requests != 0) {
+            counters.getAndAdd(customer * 2, requests);
+        }
+        if (invalid != 0) {
+            counters.getAndAdd(customer * 2 + 1, invalid);
+        }
+        if (!slot.dirty) {
+            slot.dirty = true;
+        }
+        return true;
+    }
+
+    public long requests(long epochSecond, int customer) {
+        return get(epochSecond, customer * 2L);
+    }
+
+    public long invalid(long epochSecond, int customer) {
+        return get(epochSecond, customer * 2L + 1);
+    }
+
+    private long get(long epochSecond, long index) {
+        long hour = Math.floorDiv(epochSecond, 3600);
+        Slot slot = slots[Math.floorMod(hour, slots.length)];
+        AtomicLongArray counters = slot.counters;
+        if (slot.hour != hour || index < 0 || index >= counters.length()) {
+            return 0;
+        }
+        return counters.get((int) index);
+    }
+
+    /**
+     * Assigns slots to the hours of the current window. Counters left in slots which leave the ring
+     * are passed to the visitor.
+     */
+    public void rotate(long nowMillis, HourlyCounterMap.Visitor expired) {
+        long first = nowMillis / HOUR_MS - pastHours - SPARE_SLOTS;
+        for (int i = 0; i < slots.length; i++) {
+            long expected = first + Math.floorMod(i - first, slots.length);
+            Slot slot = slots[i];
+            if (slot.hour != expected) {
+                drain(slot, expired);
+                slot.hour = expected;
+            }
+        }
+    }
+
+    /**
+     * Resets all counters, passing non-zero ones to the visitor.
+     */
+    public void drain(HourlyCounterMap.Visitor visitor) {
+        for (Slot slot : slots) {
+            if (slot.dirty || slot.retired != null) {
+                drain(slot, visitor);
+            }
+        }
+    }
+
+    private static void drain(Slot slot, HourlyCounterMap.Visitor visitor) {
+        slot.dirty = false;
+        long hourEpochSecond = slot.hour * 3600;
+        if (slot.retired != null) {
+            drain(slot.retired, hourEpochSecond, visitor);
+            slot.retired = null;
+        }
+        drain(slot.counters, hourEpochSecond, visitor);
+    }
+
+    private static void drain(AtomicLongArray counters, long hourEpochSecond, HourlyCounterMap.Visitor visitor) {
+        for (int i = 0; i < counters.length(); i += 2) {
+            if (counters.get(i) == 0 && counters.get(i + 1) == 0) {
+                continue;
+            }
+            long requests = counters.getAndSet(i, 0);
+            long invalid = counters.getAndSet(i + 1, 0);
+            if (requests != 0 || invalid != 0) {
+                visitor.visit(i / 2, hourEpochSecond, requests, invalid);
+            }
+        }
+    }
+
+    /**
+     * Grows the counter arrays if a customer beyond the capacity has been counted.
+     * Counts which kept coming into the replaced arrays are picked up by the next {@link #drain}.
+     */
+    public void ensureCapacity(HourlyCounterMap.Visitor visitor) {
+        int requested = Math.min(requestedCustomers.get(), maxCustomers);
+        int customers = slots[0].counters.length() / 2;
+        if (requested <= customers) {
+            return;
+        }
+        int newCustomers = Math.min(maxCustomers, Math.max(requested, customers * 2));
+        for (Slot slot : slots) {
+            drain(slot, visitor);
+            slot.retired = slot.counters;
+            slot.counters = new AtomicLongArray(newCustomers * 2);
+            slot.dirty = true;
+        }
+    }
+}
@@ -0,0 +1,347 @@
+package wahtari.data.util;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Map of IPv4 networks to small values ({@code 0..127}) with longest-prefix-match lookups.
+ *
+ * The trie is a pair of primitive child arrays plus one value byte per node, so a lookup is a
+ * single walk without allocation. A later put of the same prefix replaces its value.
+ *
+ * Networks may additionally be assigned to members (non-negative ints, e.g. customer ids), which the
+ * same walk checks: {@link #get(long, int)} returns {@link #MEMBER_MATCH} if any network containing
+ * the address belongs to the member. Member sets are stored only for the few nodes which have one,
+ * as sorted arrays looked up by node id.
+ */
+public class Ip4NetworkMap {
+
+    public static final int NO_VALUE = -1;
+    public static final int MAX_VALUE = Byte.MAX_VALUE;
+    public static final int MEMBER_MATCH = MAX_VALUE + 1;
+    public static final int NO_MEMBER = -1;
+
+    private static final int DEFAULT_CAPACITY = 32;
+    private static final int ROOT = 0;
+    private static final int NOT_SET = -1;
+    private static final long HIGH_BIT = 1L << 31;
+
+    private int[] ones;
+    private int[] zeroes;
+    private byte[] values;
+    private int size;
+    private int capacity;
+
+    // nodes which have members; their ids sorted, and the sorted members of each
+    private BitSet memberNodes = new BitSet();
+    private int[] memberIndex = new int[0];
+    private int[][] memberSets = new int[0][];
+    // (node << 32 | member) pairs added since the last seal()
+    private long[] pendingMembers = new long[0];
+    private int pendingCount;
+
+    public Ip4NetworkMap() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public Ip4NetworkMap(int capacity) {
+        capacity = Math.max(capacity, 1);
+        this.capacity = capacity;
+        size = 1;
+
+        ones = new int[capacity];
+        zeroes = new int[capacity];
+        values = new byte[capacity];
+        ones[0] = NOT_SET;
+        zeroes[0] = NOT_SET;
+        values[0] = NO_VALUE;
+    }
+
+    public void put(long addr, long netmask, int value) {
+        if (value < 0 || value > MAX_VALUE) {
+            throw new IllegalArgumentException("Value out of range: " + value);
+        }
+        // not inlined: node() may replace the arrays
+        int node = node(addr, netmask);
+        values[node] = (byte) value;
+    }
+
+    public void put(Cidr cidr, int value) {
+        put(cidr.address(), netmask(cidr), value);
+    }
+
+    /**
+     * Assigns the network to the member. Takes effect with the next {@link #compact()} or {@link #trim()}.
+     */
+    public void addMember(long addr, long netmask, int member) {
+        if (member < 0) {
+            throw new IllegalArgumentException("Negative member: " + member);
+        }
+        addPendingMember(node(addr, netmask), member);
+    }
+
+    public void addMember(Cidr cidr, int member) {
+        addMember(cidr.address(), netmask(cidr), member);
+    }
+
+    private static long netmask(Cidr cidr) {
+        return ((1L << (32 - cidr.netmaskBits())) - 1L) ^ 0xffffffffL;
+    }
+
+    /**
+     * @return the node of the prefix, created if missing
+     */
+    private int node(long addr, long netmask) {
+        long bit = HIGH_BIT;
+        int curPtr = ROOT;
+        int nextPtr = ROOT;
+
+        while ((netmask & bit) != 0) {
+            if ((addr & bit) == 0) {
+                nextPtr = zeroes[curPtr];
+            } else {
+                nextPtr = ones[curPtr];
+            }
+            if (nextPtr == NOT_SET) {
+                break;
+            }
+            bit >>= 1;
+            curPtr = nextPtr;
+        }
+
+        if (nextPtr != NOT_SET) {
+            return curPtr;
+        }
+
+        while ((netmask & bit) != 0) {
+            nextPtr = newNode();
+            if ((addr & bit) != 0) {
+                ones[curPtr] = nextPtr;
+            } else {
+                zeroes[curPtr] = nextPtr;
+            }
+            bit >>= 1;
+            curPtr = nextPtr;
+        }
+
+        return curPtr;
+    }
+
+    /**
+     * @return the value of the longest prefix containing the address, or {@link #NO_VALUE}
+     */
+    public int get(long addr) {
+        return get(addr, NO_MEMBER);
+    }
+
+    /**
+     * @return {@link #MEMBER_MATCH} if a network containing the address belongs to the member,
+     * otherwise the value of the longest prefix containing the address, or {@link #NO_VALUE}
+     */
+    public int get(long addr, int member) {
+        int result = NO_VALUE;
+
+        int curPtr = ROOT;
+        long bit = HIGH_BIT;
+
+        while (curPtr != NOT_SET) {
+            int value = values[curPtr];
+            if (value != NO_VALUE) {
+                result = value;
+            }
+            if (member != NO_MEMBER && memberNodes.get(curPtr)
+                    && Arrays.binarySearch(memberSets[Arrays.binarySearch(memberIndex, curPtr)], member) >= 0) {
+                return MEMBER_MATCH;
+            }
+            if ((addr & bit) == 0) {
+                curPtr = zeroes[curPtr];
+            } else {
+                curPtr = ones[curPtr];
+            }
+            bit >>= 1;
+        }
+
+        return result;
+    }
+
+    /**
+     * Rebuilds the trie in normal form without changing the result of any lookup:
+     * prefixes covered by a shorter one with the same value are dropped, and sibling networks
+     * with the same value are merged into their parent, e.g. two /25s into a /24.
+     * The node arrays are trimmed to the result.
+     */
+    public void compact() {
+        seal();
+        Ip4NetworkMap target = new Ip4NetworkMap(size);
+        int root = compact(ROOT, NO_VALUE, target);
+        if (root < NOT_SET) {
+            target.values[ROOT] = (byte) uniformValue(root);
+        }
+        target.trim();
+
+        ones = target.ones;
+        zeroes = target.zeroes;
+        values = target.values;
+        size = target.size;
+        capacity = target.capacity;
+        memberNodes = target.memberNodes;
+        memberIndex = target.memberIndex;
+        memberSets = target.memberSets;
+    }
+
+    /**
+     * Copies the subtree of {@code node} to {@code target}, where it is going to be placed below
+     * a node whose addresses resolve to {@code inherited}.
+     *
+     * @return the new node, or an encoded value below {@link #NOT_SET} if the whole subtree resolves to it
+     */
+    private int compact(int node, int inherited, Ip4NetworkMap target) {
+        int value = values[node] == NO_VALUE ? inherited : values[node];
+        int zero = zeroes[node] == NOT_SET ? uniform(value) : compact(zeroes[node], value, target);
+        int one = ones[node] == NOT_SET ? uniform(value) : compact(ones[node], value, target);
+        boolean hasMembers = memberNodes.get(node);
+        if (zero == one && zero < NOT_SET && !hasMembers) {
+            return zero;
+        }
+
+        int copy = node == ROOT ? ROOT : target.newNode();
+        target.zeroes[copy] = target.child(zero, value);
+        target.ones[copy] = target.child(one, value);
+        target.values[copy] = (byte) (value != inherited ? value : NO_VALUE);
+        if (hasMembers) {
+            for (int member : memberSets[Arrays.binarySearch(memberIndex, node)]) {
+                target.addPendingMember(copy, member);
+            }
+        }
+        return copy;
+    }
+
+    private static int uniform(int value) {
+        return -3 - value;
+    }
+
+    private static int uniformValue(int compacted) {
+        return -3 - compacted;
+    }
+
+    /**
+     * @return the child to link below a node which resolves to {@code parentValue}
+     */
+    private int child(int compacted, int parentValue) {
+        if (compacted >= 0) {
+            return compacted;
+        }
+        int value = uniformValue(compacted);
+        if (value == parentValue) {
+            return NOT_SET;
+        }
+        int leaf = newNode();
+        values[leaf] = (byte) value;
+        return leaf;
+    }
+
+    public int nodeCount() {
+        return size;
+    }
+
+    /**
+     * Expected number of trie nodes for the given number of random prefixes with the given total of prefix
+     * lengths: the upper levels are shared, below {@code log2(prefixes)} every prefix has its own path.
+     * Never more than one node per prefix bit. The arrays grow if this turns out to be too small.
+     */
+    public static int estimateCapacity(long prefixes, long prefixBits) {
+        if (prefixes <= 0) {
+            return DEFAULT_CAPACITY;
+        }
+        int averageBits = (int) Math.min(32, prefixBits / prefixes);
+        int sharedLevels = Math.min(averageBits, 64 - Long.numberOfLeadingZeros(prefixes));
+        long expected = prefixes * (averageBits - sharedLevels) + (1L << (sharedLevels + 1));
+        return (int) Math.max(DEFAULT_CAPACITY, Math.min(Integer.MAX_VALUE - 8, Math.min(expected, prefixBits + 1)));
+    }
+
+    private void addPendingMember(int node, int member) {
+        if (pendingCount == pendingMembers.length) {
+            pendingMembers = Arrays.copyOf(pendingMembers, Math.max(16, pendingCount * 2));
+        }
+        pendingMembers[pendingCount++] = (long) node << 32 | member;
+    }
+
+    /**
+     * Merges the pending members into the lookup arrays.
+     */
+    private void seal() {
+        if (pendingCount == 0) return;
+
+        long[] pairs = Arrays.copyOf(pendingMembers, pendingCount + memberSetsSize());
+        int count = pendingCount;
+        for (int i = 0; i < memberIndex.length; i++) {
+            for (int member : memberSets[i]) {
+                pairs[count++] = (long) memberIndex[i] << 32 | member;
+            }
+        }
+        Arrays.sort(pairs);
+
+        int nodes = 0;
+        for (int i = 0; i < count; i++) {
+            if (i == 0 || pairs[i] >>> 32 != pairs[i - 1] >>> 32) nodes++;
+        }
+        int[] index = new int[nodes];
+        int[][] sets = new int[nodes][];
+        BitSet flags = new BitSet();
+        int n = 0;
+        for (int from = 0; from < count; ) {
+            int node = (int) (pairs[from] >>> 32);
+            int to = from;
+            while (to < count && (int) (pairs[to] >>> 32) == node) to++;
+            index[n] = node;
+            sets[n++] = Arrays.stream(pairs, from, to).mapToInt(pair -> (int) pair).distinct().toArray();
+            flags.set(node);
+            from = to;
+        }
+
+        memberIndex = index;
+        memberSets = sets;
+        memberNodes = flags;
+        pendingMembers = new long[0];
+        pendingCount = 0;
+    }
+
+    private int memberSetsSize() {
+        int total = 0;
+        for (int[] set : memberSets) {
+            total += set.length;
+        }
+        return total;
+    }
+
+    /**
+     * Shrinks the node arrays to the actual number of nodes.
+     */
+    public void trim() {
+        seal();
+        if (size == capacity) return;
+
+        capacity = size;
+        zeroes = Arrays.copyOf(zeroes, capacity);
+        ones = Arrays.copyOf(ones, capacity);
+        values = Arrays.copyOf(values, capacity);
+    }
+
+    private int newNode() {
+        ensureCapacity();
+        int node = size++;
+        ones[node] = NOT_SET;
+        zeroes[node] = NOT_SET;
+        values[node] = NO_VALUE;
+        return node;
+    }
+
+    private void ensureCapacity() {
+        if (size < capacity) return;
+
+        capacity = capacity * 2;
+        zeroes = Arrays.copyOf(zeroes, capacity);
+        ones = Arrays.copyOf(ones, capacity);
+        values = Arrays.copyOf(values, capacity);
+    }
+}
@@ -0,0 +1,145 @@
+package wahtari.data.util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Ring of minute slots covering the last {@code minutes} minutes, each slot holds a pair of counters
+ * per customer, a dense index like in {@link HourlyCounterRing}. Counters are never drained,
+ * they are reset when their slot is reused for a new minute.
+ *
+ * Counting and reading methods may be called from any thread. {@link #rotate} and
+ * {@link #ensureCapacity} must be called from a single maintenance thread, at least once a minute.
+ *
+ * Counts of a customer beyond the capacity are skipped until the next {@link #ensureCapacity},
+ * and counts racing with it may be lost, so the counters are exact only while the capacity is stable.
+ */
+public class MinuteCounterRing {
+
+    private static final int SPARE_SLOTS = 2;
+    // accepted clock skew of event timestamps
+    private static final int FUTURE_MINUTES = 1;
+    private static final long MINUTE_MS = 60_000L;
+
+    private static class Slot {
+        volatile long minute = Long.MIN_VALUE;
+        volatile AtomicLongArray counters;
+
+        Slot(int customers) {
+            counters = new AtomicLongArray(customers * 2);
+        }
+    }
+
+    private final Slot[] slots;
+    private final int minutes;
+    private final int maxCustomers;
+    private final AtomicInteger requestedCustomers = new AtomicInteger();
+
+    public MinuteCounterRing(int minutes, int initialCustomers, int maxCustomers) {
+        this.minutes = minutes;
+        this.maxCustomers = maxCustomers;
+        this.slots = new Slot[minutes + FUTURE_MINUTES + SPARE_SLOTS];
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = new Slot(initialCustomers);
+        }
+        rotate(System.currentTimeMillis());
+    }
+
+    /**
+     * @return false if the minute is outside of the window or the customer is out of range,
+     * then nothing is counted
+     */
+    public boolean add(long epochSecond, int customer, long requests, long invalid) {
+        long minute = Math.floorDiv(epochSecond, 60);
+        long currentMinute = System.currentTimeMillis() / MINUTE_MS;
+        if (minute <= currentMinute - minutes || minute > currentMinute + FUTURE_MINUTES) {
+            return false;
+        }
+        Slot slot = slots[(int) Math.floorMod(minute, slots.length)];
+        if (slot.minute != minute) {
+            // not rotated yet
+            return false;
+        }
+        AtomicLongArray counters = slot.counters;
+        if (customer < 0 || customer * 2L + 1 >= counters.length()) {
+            requestedCustomers.accumulateAndGet(customer + 1, Math::max);
+            return false;
+        }
+        if (requests != 0) {
+            counters.getAndAdd(customer * 2, requests);
+        }
+        if (invalid != 0) {
+            counters.getAndAdd(customer * 2 + 1, invalid);
+        }
+        return true;
+    }
+
+    public long requests(long minute, int customer) {
+        return get(minute, customer * 2L);
+    }
+
+    public long invalid(long minute, int customer) {
+        return get(minute, customer * 2L + 1);
+    }
+
+    private long get(long minute, long index) {
+        Slot slot = slots[(int) Math.floorMod(minute, slots.length)];
+        AtomicLongArray counters = slot.counters;
+        if (slot.minute != minute || index < 0 || index >= counters.length()) {
+            return 0;
+        }
+        return counters.get((int) index);
+    }
+
+    /**
+     * @return first minute (since epoch) of the window
+     */
+    public long firstMinute(long nowMillis) {
+        return nowMillis / MINUTE_MS - minutes + 1;
+    }
+
+    /**
+     * @return last minute (since epoch) of the window, including the accepted clock skew
+     */
+    public long lastMinute(long nowMillis) {
+        return nowMillis / MINUTE_MS + FUTURE_MINUTES;
+    }
+
+    /**
+     * Assigns slots to the minutes of the current window, resetting reused ones.
+     */
+    public void rotate(long nowMillis) {
+        long first = firstMinute(nowMillis) - SPARE_SLOTS;
+        for (int i = 0; i < slots.length; i++) {
+            long expected = first + Math.floorMod(i - first, slots.length);
+            Slot slot = slots[i];
+            if (slot.minute != expected) {
+                AtomicLongArray counters = slot.counters;
+                for (int j = 0; j < counters.length(); j++) {
+                    counters.set(j, 0);
+                }
+                slot.minute = expected;
+            }
+        }
+    }
+
+    /**
+     * Grows the counter arrays if a customer beyond the capacity has been counted.
+     */
+    public void ensureCapacity() {
+        int requested = Math.min(requestedCustomers.get(), maxCustomers);
+        int customers = slots[0].counters.length() / 2;
+        if (requested <= customers) {
+            return;
+        }
+        int newCustomers = Math.min(maxCustomers, Math.max(requested, customers * 2));
+        for (Slot slot : slots) {
+            AtomicLongArray counters = slot.counters;
+            AtomicLongArray grown = new AtomicLongArray(newCustomers * 2);
+            for (int i = 0; i < counters.length(); i++) {
+                grown.set(i, counters.get(i));
+            }
+            slot.counters = grown;
+        }
+    }
+}
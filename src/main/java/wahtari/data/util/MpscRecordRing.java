@@ -0,0 +1,106 @@
+package wahtari.data.util;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded lock-free multi-producer single-consumer queue of fixed-width records.
+ *
+ * Records are stored inline as {@code long} words of a single preallocated array, so
+ * neither producers nor the consumer allocate. Every slot has a sequence number which
+ * hands the slot over between producers and the consumer (D. Vyukov's bounded queue).
+ *
+ * Producers call {@link #claim()}, fill the record with {@link #put(long, int, long)}
+ * and make it visible with {@link #publish(long)}.
+ */
+public class MpscRecordRing {
+
+    private static final VarHandle SEQUENCE = MethodHandles.arrayElementVarHandle(long[].class);
+    public static final long FULL = -1;
+
+    private final int mask;
+    private final int width;
+    private final long[] sequences;
+    private final long[] data;
+
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long head;
+
+    public interface RecordConsumer {
+        void accept(long[] data, int offset);
+    }
+
+    public MpscRecordRing(int capacity, int width) {
+        if (capacity < 2 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+        }
+        this.mask = capacity - 1;
+        this.width = width;
+        this.sequences = new long[capacity];
+        this.data = new long[capacity * width];
+        for (int i = 0; i < capacity; i++) {
+            sequences[i] = i;
+        }
+    }
+
+    /**
+     * @return position of the claimed slot or {@link #FULL} if there is no free slot
+     */
+    public long claim() {
+        for (;;) {
+            long pos = tail.get();
+            long seq = (long) SEQUENCE.getAcquire(sequences, (int) pos & mask);
+            long diff = seq - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    return pos;
+                }
+            } else if (diff < 0) {
+                return FULL;
+            } else {
+                Thread.onSpinWait();
+            }
+        }
+    }
+
+    public void put(long pos, int field, long value) {
+        data[((int) pos & mask) * width + field] = value;
+    }
+
+    public void publish(long pos) {
+        SEQUENCE.setRelease(sequences, (int) pos & mask, pos + 1);
+    }
+
+    /**
+     * Must be called from the single consumer thread only.
+     *
+     * @return number of records passed to the consumer
+     */
+    public int drain(RecordConsumer consumer, int limit) {
+        long pos = head;
+        int count = 0;
+        while (count < limit) {
+            int idx = (int) pos & mask;
+            long seq = (long) SEQUENCE.getAcquire(sequences, idx);
+            if (seq != pos + 1) {
+                break;
+            }
+            consumer.accept(data, idx * width);
+            SEQUENCE.setRelease(sequences, idx, pos + mask + 1);
+            pos++;
+            count++;
+        }
+        head = pos;
+        return count;
+    }
+
+    public int size() {
+        long size = tail.get() - head;
+        return (int) Math.max(0, Math.min(size, mask + 1));
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+}
@@ -0,0 +1,114 @@
+package wahtari.http;
+
+import org.xnio.channels.Channels;
+import org.xnio.channels.StreamSourceChannel;
+import wahtari.data.util.BufferPool;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+
+/**
+ * Request body decoded while it is read. Compressed bytes are read from the request channel
+ * into a pooled direct buffer, which is large enough for the whole compressed body, the decoded bytes are
+ * produced straight into the buffer of the reader. Fails with {@link BodyTooLargeException} once
+ * the decoded body exceeds its limit.
+ */
+abstract class CompressedBodyStream extends InputStream {
+
+    private final StreamSourceChannel source;
+    private final BufferPool inputPool;
+    private final long maxDecodedBytes;
+    private final byte[] single = new byte[1];
+    private long decodedBytes;
+    private boolean sourceDone;
+    // compressed bytes, in read mode
+    protected ByteBuffer in;
+
+    CompressedBodyStream(StreamSourceChannel source, BufferPool inputPool, long maxDecodedBytes) {
+        this.source = source;
+        this.inputPool = inputPool;
+        this.maxDecodedBytes = maxDecodedBytes;
+        this.in = inputPool.acquire().flip();
+    }
+
+    /**
+     * Reads more compressed bytes, keeping the unread ones.
+     *
+     * @return false at the end of the body
+     */
+    protected boolean fill() throws IOException {
+        if (sourceDone) {
+            return false;
+        }
+        in.compact();
+        try {
+            if (!in.hasRemaining()) {
+                // bodies larger than the buffer are rejected by the max entity size before
+                throw new BodyTooLargeException();
+            }
+            if (Channels.readBlocking(source, in) < 0) {
+                sourceDone = true;
+                return false;
+            }
+            return true;
+        } finally {
+            in.flip();
+        }
+    }
+
+    /**
+     * Makes sure that at least {@code count} compressed bytes are buffered.
+     */
+    protected void require(int count) throws IOException {
+        while (in.remaining() < count) {
+            if (!fill()) {
+                throw new EOFException("Truncated body");
+            }
+        }
+    }
+
+    protected int readByte() throws IOException {
+        require(1);
+        return in.get() & 0xff;
+    }
+
+    /**
+     * @return max number of bytes to decode into a buffer of the given length, one more than allowed,
+     * so that the limit is detected
+     */
+    protected int allowed(int length) {
+        return (int) Math.min(length, maxDecodedBytes - decodedBytes + 1);
+    }
+
+    protected void decoded(int count) throws BodyTooLargeException {
+        decodedBytes += count;
+        if (decodedBytes > maxDecodedBytes) {
+            throw new BodyTooLargeException();
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public void close() {
+        if (in != null) {
+            inputPool.release(in);
+            in = null;
+        }
+    }
+
+    /**
+     * The decoded body exceeds its limit.
+     */
+    static class BodyTooLargeException extends IOException {
+        BodyTooLargeException() {
+            super("Request body too large");
+        }
+    }
+}
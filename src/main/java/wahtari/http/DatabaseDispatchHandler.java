@@ -0,0 +1,56 @@
+package wahtari.http;
+
+import io.undertow.server.HttpHandler;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.util.StatusCodes;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Runs a blocking handler which queries the database on the given executor instead of the
+ * worker pool, which is then left to ingest requests. Concurrent handlers are limited by
+ * a semaphore shared by all database routes; a request which doesn't get a permit in time
+ * is answered with 503.
+ *
+ * Meant for a virtual thread per task executor: waiting for a permit or for the database
+ * costs no platform thread.
+ */
+public class DatabaseDispatchHandler implements HttpHandler {
+
+    private final HttpHandler next;
+    private final Executor executor;
+    private final Semaphore permits;
+    private final long acquireTimeoutMs;
+
+    public DatabaseDispatchHandler(HttpHandler next, Executor executor, Semaphore permits, long acquireTimeoutMs) {
+        this.next = next;
+        this.executor = executor;
+        this.permits = permits;
+        this.acquireTimeoutMs = acquireTimeoutMs;
+    }
+
+    @Override
+    public void handleRequest(HttpServerExchange exchange) throws Exception {
+        exchange.startBlocking();
+        if (exchange.isInIoThread()) {
+            exchange.dispatch(executor, this::handleLimited);
+        } else {
+            handleLimited(exchange);
+        }
+    }
+
+    private void handleLimited(HttpServerExchange exchange) throws Exception {
+        if (!permits.tryAcquire(acquireTimeoutMs, TimeUnit.MILLISECONDS)) {
+            exchange.setStatusCode(StatusCodes.SERVICE_UNAVAILABLE);
+            return;
+        }
+        try {
+            next.handleRequest(exchange);
+        } finally {
+            permits.release();
+        }
+    }
+}
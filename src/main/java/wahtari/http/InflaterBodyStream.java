@@ -0,0 +1,150 @@
+package wahtari.http;
+
+import org.xnio.channels.StreamSourceChannel;
+import wahtari.data.util.BufferPool;
+
+import java.io.IOException;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+
+/**
+ * {@code gzip} or {@code deflate} body. For {@code deflate} both the zlib format of RFC 9110
+ * and raw deflate data, which some clients send instead, are accepted.
+ */
+final class InflaterBodyStream extends CompressedBodyStream {
+
+    private static final int GZIP_MAGIC = 0x8b1f;
+    private static final int FHCRC = 2;
+    private static final int FEXTRA = 4;
+    private static final int FNAME = 8;
+    private static final int FCOMMENT = 16;
+    private static final int GZIP_RESERVED = 0xe0;
+
+    private final boolean gzip;
+    private final RequestBodyDecoder decoder;
+    private final CRC32 crc = new CRC32();
+    private Inflater inflater;
+    private boolean nowrap;
+    private boolean finished;
+
+    InflaterBodyStream(StreamSourceChannel source, BufferPool inputPool, long maxDecodedBytes,
+                       boolean gzip, RequestBodyDecoder decoder) {
+        super(source, inputPool, maxDecodedBytes);
+        this.gzip = gzip;
+        this.decoder = decoder;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (finished) {
+            return -1;
+        }
+        if (inflater == null) {
+            start();
+        }
+        if (len == 0) {
+            return 0;
+        }
+        try {
+            while (true) {
+                int n = inflater.inflate(b, off, allowed(len));
+                if (n > 0) {
+                    decoded(n);
+                    if (gzip) {
+                        crc.update(b, off, n);
+                    }
+                    return n;
+                }
+                if (inflater.finished()) {
+                    if (gzip) {
+                        readTrailer();
+                    }
+                    finished = true;
+                    return -1;
+                }
+                if (inflater.needsDictionary()) {
+                    throw new IOException("Preset dictionaries are not supported");
+                }
+                if (inflater.needsInput()) {
+                    require(1);
+                    inflater.setInput(in);
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Malformed compressed body", e);
+        }
+    }
+
+    private void start() throws IOException {
+        if (gzip) {
+            readHeader();
+            nowrap = true;
+        } else {
+            // zlib header: deflate method, check bits
+            require(2);
+            int cmf = in.get(in.position()) & 0xff;
+            int flg = in.get(in.position() + 1) & 0xff;
+            nowrap = (cmf & 0x0f) != 8 || ((cmf << 8) | flg) % 31 != 0;
+        }
+        inflater = decoder.acquireInflater(nowrap);
+        inflater.setInput(in);
+    }
+
+    private void readHeader() throws IOException {
+        if ((readByte() | readByte() << 8) != GZIP_MAGIC || readByte() != 8) {
+            throw new IOException("Not in gzip format");
+        }
+        int flags = readByte();
+        if ((flags & GZIP_RESERVED) != 0) {
+            throw new IOException("Unsupported gzip flags " + flags);
+        }
+        // modification time, extra flags, operating system
+        skip(6);
+        if ((flags & FEXTRA) != 0) {
+            skip(readByte() | readByte() << 8);
+        }
+        if ((flags & FNAME) != 0) {
+            skipZeroTerminated();
+        }
+        if ((flags & FCOMMENT) != 0) {
+            skipZeroTerminated();
+        }
+        if ((flags & FHCRC) != 0) {
+            skip(2);
+        }
+    }
+
+    private void readTrailer() throws IOException {
+        long crc32 = readIntLE() & 0xffffffffL;
+        long size = readIntLE() & 0xffffffffL;
+        if (crc32 != crc.getValue() || size != (inflater.getBytesWritten() & 0xffffffffL)) {
+            throw new IOException("Corrupt gzip body");
+        }
+    }
+
+    private int readIntLE() throws IOException {
+        return readByte() | readByte() << 8 | readByte() << 16 | readByte() << 24;
+    }
+
+    private void skip(int count) throws IOException {
+        require(count);
+        in.position(in.position() + count);
+    }
+
+    private void skipZeroTerminated() throws IOException {
+        while (readByte() != 0) {
+            // skip
+        }
+    }
+
+    @Override
+    public void close() {
+        if (inflater != null) {
+            decoder.releaseInflater(inflater, nowrap);
+            inflater = null;
+        }
+        super.close();
+    }
+}
@@ -5,13 +5,15 @@ import com.dslplatform.json.runtime.Settings;
 import io.undertow.server.HttpHandler;
 import io.undertow.server.HttpServerExchange;
 import io.undertow.util.Headers;
+import io.undertow.util.HttpString;
 import io.undertow.util.Methods;
-import io.undertow.util.StatusCodes;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 import wahtari.data.InMemoryDao;
-import wahtari.data.StatsService;
+import wahtari.sink.EventRecord;
 
+import java.io.InputStream;
 import java.util.Optional;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -21,96 +23,130 @@ import java.util.regex.Pattern;
 public class IngestHandler implements HttpHandler {
 
     private final DslJson<Object> dslJson;
-    private final StatsService statsService;
     private final InMemoryDao dao;
+    private final MessageValidator validator;
+    private final RequestBodyDecoder bodyDecoder;
+
+    @Value("${ingest.response.statusOnly:false}")
+    private boolean statusOnly;
+
+    // code of the IngestResult of a rejected request
+    static final HttpString RESULT_HEADER = new HttpString("X-Ingest-Result");
 
     private static final int IPV4_MAX_OCTET_VALUE = 255;
     private static final Pattern IP_PATTERN = Pattern.compile("^(\\d{1,3})\\.(\\d{1,3})\\.(\\d{1,3})\\.(\\d{1,3})$");
 
-    public IngestHandler(@Autowired StatsService statsService, @Autowired InMemoryDao dao) {
-        this.statsService = statsService;
+    public IngestHandler(@Autowired InMemoryDao dao, @Autowired MessageValidator validator,
+                         @Autowired RequestBodyDecoder bodyDecoder) {
         this.dao = dao;
+        this.validator = validator;
+        this.bodyDecoder = bodyDecoder;
         dslJson = new DslJson<>(Settings.withRuntime().includeServiceLoader());
     }
 
     @Override
     public void handleRequest(HttpServerExchange exchange) {
+        SlowIngestEvent event = new SlowIngestEvent();
+        if (!event.isEnabled()) {
+            respond(exchange, ingest(exchange, null));
+            return;
+        }
+        event.start();
+        IngestResult result = ingest(exchange, event);
+        respond(exchange, result);
+        event.end();
+        if (event.shouldCommit()) {
+            event.result = result.name();
+            event.commit();
+        }
+    }
+
+    /**
+     * @param event records the time of each stage if not null
+     */
+    private IngestResult ingest(HttpServerExchange exchange, SlowIngestEvent event) {
 
         if (!exchange.getRequestMethod().equals(Methods.POST)) {
-            exchange.setStatusCode(StatusCodes.METHOD_NOT_ALLOWED);
-            return;
+            return IngestResult.METHOD_NOT_ALLOWED;
         }
 
-        // validate JSON
-        MessageDto msg = parseMessage(exchange);
+        // decode body, validate JSON
+        InputStream body = bodyDecoder.open(exchange, exchange.getRequestHeaders().getFirst(Headers.CONTENT_ENCODING));
+        if (body == null) {
+            return IngestResult.UNSUPPORTED_ENCODING;
+        }
+        return ingest(body, exchange.getRequestHeaders().getFirst(Headers.USER_AGENT), event);
+    }
+
+    /**
+     * Parses and validates a decoded body, also used to replay synthetic messages during the warm-up.
+     *
+     * @param userAgent null if unknown
+     * @param event records the time of each stage if not null
+     */
+    IngestResult ingest(InputStream body, String userAgent, SlowIngestEvent event) {
+        MessageDto msg;
+        try (body) {
+            msg = dslJson.deserialize(MessageDto.class, body);
+        } catch (Exception e) {
+            return RequestBodyDecoder.isTooLarge(e) ? IngestResult.BODY_TOO_LARGE : IngestResult.UNPROCESSABLE_JSON;
+        }
+        if (event != null) event.parseTime = event.lap();
         if(msg == null) {
-            exchange.setStatusCode(StatusCodes.BAD_REQUEST);
-            exchange.getResponseSender().send("Unprocessable JSON");
-            return;
+            return IngestResult.UNPROCESSABLE_JSON;
         }
+        if (event != null && msg.getCustomerId() != null) event.customerId = msg.getCustomerId();
 
         // validate fields
         if (!msg.validate()) {
-            exchange.setStatusCode(StatusCodes.BAD_REQUEST);
-            exchange.getResponseSender().send("Missing mandatory fields");
-
             Integer customerId = msg.getCustomerId();
             if (customerId != null && dao.customerExists(customerId)) {
-                statsService.markInvalid(msg.getTimestamp(), customerId);
+                handleInvalidMessage(msg, 0, EventRecord.STATUS_MISSING_FIELDS);
             }
-            return;
+            return IngestResult.MISSING_FIELDS;
         }
 
         // validate customer
-        Optional<Boolean> active = dao.customerActive(msg.getCustomerId());
-        if (active.isEmpty()) {
-            exchange.setStatusCode(StatusCodes.BAD_REQUEST);
-            exchange.getResponseSender().send("Customer not found");
-            return;
-        } else if (active.get()) {
-            exchange.setStatusCode(StatusCodes.BAD_REQUEST);
-            exchange.getResponseSender().send("Customer is not active");
-            statsService.markInvalid(msg.getTimestamp(), msg.getCustomerId());
-            return;
+        IngestResult result = validator.checkCustomer(msg.getCustomerId(), msg.getTagId(), msg.getTimestamp(),
+                msg.getUserId());
+        if (result != IngestResult.ACCEPTED) {
+            return result;
         }
 
         // validate IP
         Optional<Integer> ip = ipV4StringToInt(msg.getRemoteIp());
         if (ip.isEmpty()) {
-            exchange.setStatusCode(StatusCodes.BAD_REQUEST);
-            exchange.getResponseSender().send("IP address invalid");
-            statsService.markInvalid(msg.getTimestamp(), msg.getCustomerId());
-            return;
-        } else if (dao.addressBlacklisted(ip.get())) {
-            exchange.setStatusCode(StatusCodes.BAD_REQUEST);
-            exchange.getResponseSender().send("IP address blacklisted");
-            statsService.markInvalid(msg.getTimestamp(), msg.getCustomerId());
-            return;
-        }
-
-        // validate UA
-        String ua = exchange.getRequestHeaders().getFirst(Headers.USER_AGENT);
-        if (ua != null && dao.userAgentBlacklisted(ua)) {
-            exchange.setStatusCode(StatusCodes.BAD_REQUEST);
-            exchange.getResponseSender().send("UserAgent blacklisted");
-            statsService.markInvalid(msg.getTimestamp(), msg.getCustomerId());
-            return;
+            handleInvalidMessage(msg, 0, EventRecord.STATUS_IP_INVALID);
+            return IngestResult.IP_INVALID;
         }
 
-        statsService.markValid(msg.getTimestamp(), msg.getCustomerId());
-        handleValidMessage(msg);
+        // validate IP and UA blacklists, pass on
+        return validator.accept(msg.getCustomerId(), msg.getTagId(), ip.get(), msg.getTimestamp(), msg.getUserId(),
+                userAgent, event);
     }
 
-    private void handleValidMessage(MessageDto msg) {
-        // message processor stub
+    private void respond(HttpServerExchange exchange, IngestResult result) {
+        exchange.setStatusCode(result.statusCode());
+        if (statusOnly) {
+            exchange.setResponseContentLength(0);
+            return;
+        }
+        if (result != IngestResult.ACCEPTED) {
+            exchange.getResponseHeaders().put(RESULT_HEADER, result.codeValue());
+        }
+        if (result.hasBody()) {
+            exchange.getResponseSender().send(result.body());
+        } else {
+            exchange.setResponseContentLength(0);
+        }
     }
 
-    private MessageDto parseMessage(HttpServerExchange exchange) {
-        try {
-            return dslJson.deserialize(MessageDto.class, exchange.getInputStream());
-        } catch (Exception e) {
-            return null;
-        }
+    private void handleInvalidMessage(MessageDto msg, int ip, int status) {
+        Integer tagId = msg.getTagId();
+        // a message without timestamp is counted when it is received
+        Long timestamp = msg.getTimestamp();
+        validator.reject(msg.getCustomerId(), tagId == null ? 0 : tagId, ip,
+                timestamp == null ? System.currentTimeMillis() / 1000 : timestamp, msg.getUserId(), status);
     }
 
     public static Optional<Integer> ipV4StringToInt(final String inet4Address) {
@@ -0,0 +1,76 @@
+package wahtari.http;
+
+import io.undertow.util.StatusCodes;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Outcomes of an ingest request. Response bodies are encoded once into read-only direct buffers.
+ */
+public enum IngestResult {
+    ACCEPTED(0, StatusCodes.OK, ""),
+    METHOD_NOT_ALLOWED(1, StatusCodes.METHOD_NOT_ALLOWED, ""),
+    UNPROCESSABLE_JSON(2, StatusCodes.BAD_REQUEST, "Unprocessable JSON"),
+    MISSING_FIELDS(3, StatusCodes.BAD_REQUEST, "Missing mandatory fields"),
+    CUSTOMER_NOT_FOUND(4, StatusCodes.BAD_REQUEST, "Customer not found"),
+    CUSTOMER_INACTIVE(5, StatusCodes.BAD_REQUEST, "Customer is not active"),
+    IP_INVALID(6, StatusCodes.BAD_REQUEST, "IP address invalid"),
+    IP_BLACKLISTED(7, StatusCodes.BAD_REQUEST, "IP address blacklisted"),
+    UA_BLACKLISTED(8, StatusCodes.BAD_REQUEST, "UserAgent blacklisted"),
+    OVERLOADED(9, StatusCodes.SERVICE_UNAVAILABLE, "Overloaded, retry later"),
+    UNSUPPORTED_ENCODING(10, StatusCodes.UNSUPPORTED_MEDIA_TYPE, "Unsupported Content-Encoding"),
+    BODY_TOO_LARGE(11, StatusCodes.REQUEST_ENTITY_TOO_LARGE, "Request body too large");
+
+    // per-thread views of the bodies, indexed by ordinal
+    private static final ThreadLocal<ByteBuffer[]> VIEWS =
+            ThreadLocal.withInitial(() -> new ByteBuffer[IngestResult.values().length]);
+
+    private final int code;
+    // header value, kept as a string so it is never formatted per request
+    private final String codeValue;
+    private final int statusCode;
+    private final ByteBuffer body;
+
+    IngestResult(int code, int statusCode, String body) {
+        this.code = code;
+        this.codeValue = Integer.toString(code);
+        this.statusCode = statusCode;
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        this.body = ByteBuffer.allocateDirect(bytes.length).put(bytes).flip().asReadOnlyBuffer();
+    }
+
+    public int code() {
+        return code;
+    }
+
+    String codeValue() {
+        return codeValue;
+    }
+
+    public int statusCode() {
+        return statusCode;
+    }
+
+    /**
+     * @return a view of the shared body with its own position, reused by the calling thread once a
+     *         previous send has consumed it, so rejected requests don't allocate
+     */
+    ByteBuffer body() {
+        ByteBuffer[] views = VIEWS.get();
+        ByteBuffer view = views[ordinal()];
+        if (view == null) {
+            view = views[ordinal()] = body.duplicate();
+        } else if (view.hasRemaining()) {
+            // still being written by an asynchronous send
+            return body.duplicate();
+        } else {
+            view.rewind();
+        }
+        return view;
+    }
+
+    boolean hasBody() {
+        return body.hasRemaining();
+    }
+}
@@ -0,0 +1,145 @@
+package wahtari.http;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import wahtari.data.InMemoryDao;
+import wahtari.data.NoopCounter;
+import wahtari.sink.NoopSink;
+
+import java.io.ByteArrayInputStream;
+import java.lang.management.CompilationMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+
+
+/**
+ * Replays synthetic JSON messages through the ingest path once the dao is loaded, so that parsing and
+ * validation are compiled by the JIT before real traffic arrives, see {@code /ready}.
+ *
+ * Messages go through their own {@link IngestHandler} and {@link MessageValidator}, which count into a
+ * {@link NoopCounter} and pass messages on to a {@link NoopSink}, so nothing is counted or recorded.
+ * The code is the same, only the instances differ, so the counter and sink call sites are bimorphic
+ * afterwards, which the JIT still inlines. Replay runs in rounds until a round
+ * triggers no more JIT compilation, or until {@code warmup.maxMessages} or {@code warmup.maxMs}.
+ */
+@Component
+public class IngestWarmup {
+
+    private static final Logger log = LoggerFactory.getLogger(IngestWarmup.class);
+
+    private static final int ROUND_MESSAGES = 10_000;
+    private static final int MIN_ROUNDS = 5;
+    // compilation time of a round below which the hot methods are considered compiled
+    private static final long QUIET_COMPILE_MS = 2;
+    private static final int DISTINCT_MESSAGES = 1024;
+
+    private static final String[] USER_AGENTS = {
+            "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/120.0 Safari/537.36",
+            "Mozilla/5.0 (iPhone; CPU iPhone OS 17_1 like Mac OS X) AppleWebKit/605.1.15 (KHTML, like Gecko) Mobile/15E148",
+            "Mozilla/5.0 (X11; Linux x86_64; rv:121.0) Gecko/20100101 Firefox/121.0",
+            "Mozilla/5.0 (compatible; Googlebot/2.1; +http://www.google.com/bot.html)",
+            "curl/8.4.0",
+    };
+
+    private final InMemoryDao dao;
+    private final IngestHandler handler;
+    private final boolean enabled;
+    private final long maxMessages;
+    private final long maxMs;
+    private volatile boolean done;
+
+    public IngestWarmup(@Autowired InMemoryDao dao, @Autowired RequestBodyDecoder bodyDecoder,
+                        @Value("${warmup.enabled:true}") boolean enabled,
+                        @Value("${warmup.maxMessages:300000}") long maxMessages,
+                        @Value("${warmup.maxMs:20000}") long maxMs) {
+        this.dao = dao;
+        this.enabled = enabled;
+        this.maxMessages = maxMessages;
+        this.maxMs = maxMs;
+        this.handler = new IngestHandler(dao, new MessageValidator(new NoopCounter(), dao, new NoopSink()),
+                bodyDecoder);
+    }
+
+    /**
+     * @return true once the warm-up has finished, or right away if it is disabled
+     */
+    public boolean isDone() {
+        return done || !enabled;
+    }
+
+    /**
+     * Runs the warm-up unless it has already run. The dao must be loaded.
+     */
+    public void runOnce() {
+        if (isDone()) {
+            return;
+        }
+        try {
+            run();
+        } catch (RuntimeException e) {
+            // the warm-up only saves latency, it must not keep the service from getting ready
+            log.warn("Warm-up failed", e);
+        }
+        done = true;
+    }
+
+    private void run() {
+        List<byte[]> bodies = messages();
+        CompilationMXBean jit = ManagementFactory.getCompilationMXBean();
+        boolean jitTime = jit != null && jit.isCompilationTimeMonitoringSupported();
+        long start = System.currentTimeMillis();
+        long compileTime = jitTime ? jit.getTotalCompilationTime() : 0;
+        long messages = 0;
+        int rounds = 0;
+        int next = 0;
+        while (messages < maxMessages && System.currentTimeMillis() - start < maxMs) {
+            for (int i = 0; i < ROUND_MESSAGES; i++) {
+                String userAgent = USER_AGENTS[next % USER_AGENTS.length];
+                handler.ingest(new ByteArrayInputStream(bodies.get(next)), userAgent, null);
+                next = (next + 1) % bodies.size();
+            }
+            messages += ROUND_MESSAGES;
+            rounds++;
+            if (jitTime) {
+                long roundCompileTime = jit.getTotalCompilationTime() - compileTime;
+                compileTime += roundCompileTime;
+                if (rounds >= MIN_ROUNDS && roundCompileTime < QUIET_COMPILE_MS) {
+                    break;
+                }
+            }
+        }
+        log.info("Warm-up replayed {} messages in {} ms", messages, System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Mostly valid messages of known customers, with some of unknown customers, with invalid addresses
+     * and with missing fields, so that all branches are taken as in real traffic.
+     */
+    private List<byte[]> messages() {
+        int[] customers = dao.customerIds().stream().mapToInt(Integer::intValue).toArray();
+        SplittableRandom random = new SplittableRandom(42);
+        long now = System.currentTimeMillis() / 1000;
+        List<byte[]> bodies = new ArrayList<>(DISTINCT_MESSAGES);
+        for (int i = 0; i < DISTINCT_MESSAGES; i++) {
+            int kind = random.nextInt(20);
+            int customerId = customers.length == 0 || kind == 0 ? -1 - random.nextInt(1000)
+                    : customers[random.nextInt(customers.length)];
+            String remoteIp = kind == 1 ? "256.1.2." + random.nextInt(256)
+                    : random.nextInt(1, 224) + "." + random.nextInt(256) + "." + random.nextInt(256) + "."
+                    + random.nextInt(256);
+            String json = kind == 2
+                    ? "{\"customerID\":" + customerId + ",\"remoteIP\":\"" + remoteIp + "\"}"
+                    : "{\"customerID\":" + customerId + ",\"tagID\":" + random.nextInt(100)
+                    + ",\"userID\":\"aaaaaaaa-bbbb-cccc-1111-" + String.format("%012x", random.nextLong(1L << 48))
+                    + "\",\"remoteIP\":\"" + remoteIp + "\",\"timestamp\":" + (now - random.nextInt(3600)) + "}";
+            bodies.add(json.getBytes(StandardCharsets.UTF_8));
+        }
+        return bodies;
+    }
+}
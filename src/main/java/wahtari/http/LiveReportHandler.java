@@ -0,0 +1,257 @@
+package wahtari.http;
+
+import io.undertow.server.HttpHandler;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.server.handlers.sse.ServerSentEventConnection;
+import io.undertow.server.handlers.sse.ServerSentEventHandler;
+import io.undertow.util.StatusCodes;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import wahtari.data.CustomerSlots;
+import wahtari.data.InMemoryDao;
+import wahtari.data.StatsService;
+import wahtari.data.util.MinuteCounterRing;
+
+import java.io.IOException;
+import java.util.Deque;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * {@code /report/live?customerId=1}, a Server-Sent Events stream of the per-minute counters of the last hour.
+ *
+ * A subscriber first receives a {@code snapshot} event, then a {@code delta} event on every tick in which
+ * the counters of the customer changed. Both carry {@code [{"time":..,"requests":..,"invalid":..}]}
+ * with the epoch second of each minute. Deltas are computed and encoded once per customer per tick,
+ * by a single fan-out thread, which also maintains the minute ring.
+ *
+ * Events are queued by the connection until the client reads them. A connection with more than
+ * {@code live.maxQueuedEvents} unsent events is closed, so a stalled client can't pile up memory.
+ */
+@Component
+public class LiveReportHandler implements HttpHandler {
+
+    private static final Logger log = LoggerFactory.getLogger(LiveReportHandler.class);
+
+    // covers the minute window of the ring, indexed by minute mod length
+    private static final int SENT_SLOTS = 64;
+
+    // a connection with the number of its queued events
+    private static class Subscriber implements ServerSentEventConnection.EventCallback {
+        final ServerSentEventConnection connection;
+        final int customerId;
+        final AtomicInteger queued = new AtomicInteger();
+
+        Subscriber(ServerSentEventConnection connection, int customerId) {
+            this.connection = connection;
+            this.customerId = customerId;
+        }
+
+        @Override
+        public void done(ServerSentEventConnection connection, String data, String event, String id) {
+            queued.decrementAndGet();
+        }
+
+        @Override
+        public void failed(ServerSentEventConnection connection, String data, String event, String id,
+                           IOException e) {
+            queued.decrementAndGet();
+        }
+    }
+
+    private static class Subscribers {
+        final int customerId;
+        final List<Subscriber> connections = new CopyOnWriteArrayList<>();
+        final Queue<Subscriber> joining = new ConcurrentLinkedQueue<>();
+        // counters as of the last tick, accessed by the fan-out thread only
+        final long[] sentMinute = new long[SENT_SLOTS];
+        final long[] sentRequests = new long[SENT_SLOTS];
+        final long[] sentInvalid = new long[SENT_SLOTS];
+
+        Subscribers(int customerId) {
+            this.customerId = customerId;
+        }
+
+        boolean isEmpty() {
+            return connections.isEmpty() && joining.isEmpty();
+        }
+    }
+
+    private final StatsService statsService;
+    private final InMemoryDao dao;
+    private final CustomerSlots slots;
+    private final ServerSentEventHandler sse;
+    private final ConcurrentHashMap<Integer, Subscribers> subscribers = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService fanOut;
+    private final long keepAliveMs;
+    private final int maxQueuedEvents;
+
+    public LiveReportHandler(@Autowired StatsService statsService, @Autowired InMemoryDao dao,
+                             @Autowired CustomerSlots slots,
+                             @Value("${live.tickMs:1000}") long tickMs,
+                             @Value("${live.keepAliveMs:15000}") long keepAliveMs,
+                             @Value("${live.maxQueuedEvents:60}") int maxQueuedEvents) {
+        this.statsService = statsService;
+        this.dao = dao;
+        this.slots = slots;
+        this.keepAliveMs = keepAliveMs;
+        this.maxQueuedEvents = maxQueuedEvents;
+        this.sse = new ServerSentEventHandler(this::connected);
+        this.fanOut = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "live-fanout");
+            thread.setDaemon(true);
+            return thread;
+        });
+        fanOut.scheduleAtFixedRate(this::tick, tickMs, tickMs, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void handleRequest(HttpServerExchange exchange) throws Exception {
+        if (!dao.isLoaded()) {
+            // customers are not known before the first reload
+            exchange.setStatusCode(StatusCodes.SERVICE_UNAVAILABLE);
+            return;
+        }
+        Integer customerId = customerId(exchange.getQueryParameters().get("customerId"));
+        if (customerId == null || !dao.customerExists(customerId)) {
+            exchange.setStatusCode(400);
+            return;
+        }
+        sse.handleRequest(exchange);
+    }
+
+    private void connected(ServerSentEventConnection connection, String lastEventId) {
+        int customerId = customerId(connection.getQueryParameters().get("customerId"));
+        connection.setKeepAliveTime(keepAliveMs);
+        Subscriber subscriber = new Subscriber(connection, customerId);
+        subscribers.compute(customerId, (id, group) -> {
+            group = group == null ? new Subscribers(id) : group;
+            group.joining.add(subscriber);
+            return group;
+        });
+        connection.addCloseTask(closed -> {
+            Subscribers group = subscribers.get(customerId);
+            if (group != null) {
+                group.connections.remove(subscriber);
+                group.joining.remove(subscriber);
+            }
+        });
+    }
+
+    private static Integer customerId(Deque<String> param) {
+        if (param == null) {
+            return null;
+        }
+        try {
+            return Integer.parseInt(param.getFirst());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private void tick() {
+        try {
+            long now = System.currentTimeMillis();
+            MinuteCounterRing live = statsService.live();
+            live.rotate(now);
+            live.ensureCapacity();
+            long first = live.firstMinute(now);
+            long last = live.lastMinute(now);
+
+            for (Subscribers group : subscribers.values()) {
+                String delta = update(group, live, slots.slot(group.customerId), first, last);
+                if (delta != null) {
+                    for (Subscriber subscriber : group.connections) {
+                        send(subscriber, delta, "delta");
+                    }
+                }
+                Subscriber joined;
+                while ((joined = group.joining.poll()) != null) {
+                    send(joined, snapshot(group, first, last), "snapshot");
+                    group.connections.add(joined);
+                }
+                subscribers.computeIfPresent(group.customerId, (id, g) -> g.isEmpty() ? null : g);
+            }
+        } catch (Exception e) {
+            log.error("live report tick failed", e);
+        }
+    }
+
+    private void send(Subscriber subscriber, String data, String event) {
+        if (subscriber.queued.incrementAndGet() > maxQueuedEvents) {
+            log.warn("Closing live report connection of customer {}, {} events not read",
+                    subscriber.customerId, subscriber.queued.get() - 1);
+            try {
+                subscriber.connection.close();
+            } catch (IOException e) {
+                log.debug("Closing live report connection failed", e);
+            }
+            return;
+        }
+        subscriber.connection.send(data, event, null, subscriber);
+    }
+
+    /**
+     * Remembers the current counters of the customer.
+     *
+     * @param slot of the customer in the ring, {@link CustomerSlots#NO_SLOT} if it has none
+     * @return the changes since the previous tick, null if none
+     */
+    private static String update(Subscribers group, MinuteCounterRing live, int slot, long first, long last) {
+        StringBuilder sb = null;
+        for (long minute = first; minute <= last; minute++) {
+            int i = (int) Math.floorMod(minute, SENT_SLOTS);
+            long requests = slot == CustomerSlots.NO_SLOT ? 0 : live.requests(minute, slot);
+            long invalid = slot == CustomerSlots.NO_SLOT ? 0 : live.invalid(minute, slot);
+            long sentRequests = group.sentMinute[i] == minute ? group.sentRequests[i] : 0;
+            long sentInvalid = group.sentMinute[i] == minute ? group.sentInvalid[i] : 0;
+            if (requests == sentRequests && invalid == sentInvalid) {
+                continue;
+            }
+            sb = append(sb, minute, requests - sentRequests, invalid - sentInvalid);
+            group.sentMinute[i] = minute;
+            group.sentRequests[i] = requests;
+            group.sentInvalid[i] = invalid;
+        }
+        return sb == null ? null : sb.append(']').toString();
+    }
+
+    private static String snapshot(Subscribers group, long first, long last) {
+        StringBuilder sb = null;
+        for (long minute = first; minute <= last; minute++) {
+            int i = (int) Math.floorMod(minute, SENT_SLOTS);
+            if (group.sentMinute[i] == minute) {
+                sb = append(sb, minute, group.sentRequests[i], group.sentInvalid[i]);
+            }
+        }
+        return sb == null ? "[]" : sb.append(']').toString();
+    }
+
+    private static StringBuilder append(StringBuilder sb, long minute, long requests, long invalid) {
+        if (sb == null) {
+            sb = new StringBuilder(128).append('[');
+        } else {
+            sb.append(',');
+        }
+        return sb.append("{\"time\":").append(minute * 60)
+                .append(",\"requests\":").append(requests)
+                .append(",\"invalid\":").append(invalid).append('}');
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        fanOut.shutdownNow();
+    }
+}
@@ -0,0 +1,209 @@
+package wahtari.http;
+
+import org.xnio.channels.StreamSourceChannel;
+import wahtari.data.util.BufferPool;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+
+/**
+ * {@code lz4} body in the LZ4 frame format, decoded in pure Java.
+ *
+ * Blocks are decoded one at a time into a pooled heap buffer, as the reader needs them. Linked blocks
+ * may refer to the output of the previous ones, so the buffer keeps the whole output, which is bounded
+ * by the limit of the decoded body anyway. Header, block and content checksums are skipped, not verified:
+ * corrupt data is caught by the bounds checks of the decoder and by the JSON reader.
+ * Dictionaries and skippable frames are not supported.
+ */
+final class Lz4FrameBodyStream extends CompressedBodyStream {
+
+    private static final int MAGIC = 0x184D2204;
+    private static final int VERSION = 1;
+    private static final int FLAG_BLOCK_INDEPENDENCE = 0x20;
+    private static final int FLAG_BLOCK_CHECKSUM = 0x10;
+    private static final int FLAG_CONTENT_SIZE = 0x08;
+    private static final int FLAG_CONTENT_CHECKSUM = 0x04;
+    private static final int FLAG_DICT_ID = 0x01;
+    private static final int UNCOMPRESSED_BLOCK = 0x80000000;
+    private static final int MIN_MATCH = 4;
+
+    private final BufferPool outputPool;
+    // decoded bytes, written at its position, read from readPosition
+    private ByteBuffer out;
+    private int readPosition;
+    private boolean started;
+    private boolean ended;
+    private boolean independentBlocks;
+    private boolean blockChecksums;
+    private boolean contentChecksum;
+    private int maxBlockSize;
+
+    Lz4FrameBodyStream(StreamSourceChannel source, BufferPool inputPool, BufferPool outputPool,
+                       long maxDecodedBytes) {
+        super(source, inputPool, maxDecodedBytes);
+        this.outputPool = outputPool;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (!started) {
+            readHeader();
+            out = outputPool.acquire();
+            started = true;
+        }
+        while (readPosition == out.position()) {
+            if (ended || !readBlock()) {
+                ended = true;
+                return -1;
+            }
+        }
+        int n = Math.min(len, out.position() - readPosition);
+        System.arraycopy(out.array(), readPosition, b, off, n);
+        readPosition += n;
+        return n;
+    }
+
+    private void readHeader() throws IOException {
+        if (readIntLE() != MAGIC) {
+            throw new IOException("Not in LZ4 frame format");
+        }
+        int flags = readByte();
+        int blockDescriptor = readByte();
+        if (flags >>> 6 != VERSION || (flags & FLAG_DICT_ID) != 0) {
+            throw new IOException("Unsupported LZ4 frame flags " + flags);
+        }
+        independentBlocks = (flags & FLAG_BLOCK_INDEPENDENCE) != 0;
+        blockChecksums = (flags & FLAG_BLOCK_CHECKSUM) != 0;
+        contentChecksum = (flags & FLAG_CONTENT_CHECKSUM) != 0;
+        int sizeCode = (blockDescriptor >>> 4) & 0x07;
+        if (sizeCode < 4) {
+            throw new IOException("Invalid LZ4 block size " + sizeCode);
+        }
+        // 64 KB, 256 KB, 1 MB, 4 MB
+        maxBlockSize = 1 << (8 + 2 * sizeCode);
+        // content size, header checksum
+        skip((flags & FLAG_CONTENT_SIZE) != 0 ? 9 : 1);
+    }
+
+    /**
+     * @return false after the end mark
+     */
+    private boolean readBlock() throws IOException {
+        int size = readIntLE();
+        if (size == 0) {
+            if (contentChecksum) {
+                skip(4);
+            }
+            return false;
+        }
+        boolean uncompressed = (size & UNCOMPRESSED_BLOCK) != 0;
+        size &= ~UNCOMPRESSED_BLOCK;
+        if (size > maxBlockSize) {
+            throw new IOException("LZ4 block larger than its frame allows");
+        }
+        require(size);
+        if (independentBlocks) {
+            // the reader has consumed the previous block, nothing refers to it
+            out.clear();
+            readPosition = 0;
+        }
+        int start = out.position();
+        if (uncompressed) {
+            if (size > out.remaining()) {
+                throw new BodyTooLargeException();
+            }
+            in.get(in.position(), out.array(), start, size);
+            in.position(in.position() + size);
+            out.position(start + size);
+        } else {
+            decodeBlock(size);
+        }
+        decoded(out.position() - start);
+        if (blockChecksums) {
+            skip(4);
+        }
+        return true;
+    }
+
+    private void decodeBlock(int size) throws IOException {
+        byte[] dst = out.array();
+        int capacity = out.capacity();
+        int dp = out.position();
+        int sp = in.position();
+        int end = sp + size;
+        while (true) {
+            int token = in.get(sp++) & 0xff;
+
+            int literals = token >>> 4;
+            if (literals == 15) {
+                int b;
+                do {
+                    if (sp >= end) throw malformed();
+                    b = in.get(sp++) & 0xff;
+                    literals += b;
+                } while (b == 255);
+            }
+            if (literals > end - sp) throw malformed();
+            if (literals > capacity - dp) throw new BodyTooLargeException();
+            in.get(sp, dst, dp, literals);
+            sp += literals;
+            dp += literals;
+            if (sp == end) {
+                // the last sequence has literals only
+                break;
+            }
+
+            if (end - sp < 2) throw malformed();
+            int offset = (in.get(sp) & 0xff) | (in.get(sp + 1) & 0xff) << 8;
+            sp += 2;
+            int matchLength = token & 0x0f;
+            if (matchLength == 15) {
+                int b;
+                do {
+                    if (sp >= end) throw malformed();
+                    b = in.get(sp++) & 0xff;
+                    matchLength += b;
+                } while (b == 255);
+            }
+            matchLength += MIN_MATCH;
+            if (offset == 0 || offset > dp) throw malformed();
+            if (matchLength > capacity - dp) throw new BodyTooLargeException();
+            int from = dp - offset;
+            if (offset >= matchLength) {
+                System.arraycopy(dst, from, dst, dp, matchLength);
+                dp += matchLength;
+            } else {
+                // overlapping match repeats the last offset bytes
+                for (int i = 0; i < matchLength; i++) {
+                    dst[dp++] = dst[from++];
+                }
+            }
+            if (sp >= end) throw malformed();
+        }
+        in.position(end);
+        out.position(dp);
+    }
+
+    private static IOException malformed() {
+        return new IOException("Malformed LZ4 block");
+    }
+
+    private int readIntLE() throws IOException {
+        return readByte() | readByte() << 8 | readByte() << 16 | readByte() << 24;
+    }
+
+    private void skip(int count) throws IOException {
+        require(count);
+        in.position(in.position() + count);
+    }
+
+    @Override
+    public void close() {
+        if (out != null) {
+            outputPool.release(out);
+            out = null;
+        }
+        super.close();
+    }
+}
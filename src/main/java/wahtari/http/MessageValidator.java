@@ -0,0 +1,100 @@
+package wahtari.http;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import wahtari.data.BlockReason;
+import wahtari.data.InMemoryDao;
+import wahtari.data.MessageCounter;
+import wahtari.sink.EventRecord;
+import wahtari.sink.MessageSink;
+
+import java.util.Optional;
+
+
+/**
+ * Validation of decoded ingest messages against {@link InMemoryDao}, shared by all ingest protocols.
+ * Accepted messages are handed over to the sink and counted, rejected messages of known customers
+ * are counted as invalid and recorded with their status.
+ */
+@Component
+public class MessageValidator {
+
+    private final MessageCounter counter;
+    private final InMemoryDao dao;
+    private final MessageSink sink;
+
+    public MessageValidator(@Autowired MessageCounter counter, @Autowired InMemoryDao dao,
+                            @Autowired MessageSink sink) {
+        this.counter = counter;
+        this.dao = dao;
+        this.sink = sink;
+    }
+
+    /**
+     * Validates a message with all mandatory fields.
+     *
+     * @param userAgent null if unknown
+     */
+    public IngestResult ingest(int customerId, int tagId, int ip, long timestamp, CharSequence userId,
+                               CharSequence userAgent) {
+        IngestResult result = checkCustomer(customerId, tagId, timestamp, userId);
+        if (result != IngestResult.ACCEPTED) {
+            return result;
+        }
+        return accept(customerId, tagId, ip, timestamp, userId, userAgent, null);
+    }
+
+    /**
+     * @return {@link IngestResult#ACCEPTED} if the customer is known and active
+     */
+    IngestResult checkCustomer(int customerId, int tagId, long timestamp, CharSequence userId) {
+        Optional<Boolean> active = dao.customerActive(customerId);
+        if (active.isEmpty()) {
+            return IngestResult.CUSTOMER_NOT_FOUND;
+        } else if (!active.get()) {
+            reject(customerId, tagId, 0, timestamp, userId, EventRecord.STATUS_CUSTOMER_INACTIVE);
+            return IngestResult.CUSTOMER_INACTIVE;
+        }
+        return IngestResult.ACCEPTED;
+    }
+
+    /**
+     * Checks the address and the user agent of a message of an active customer, then passes it on.
+     *
+     * @param event records the time of each stage if not null
+     */
+    IngestResult accept(int customerId, int tagId, int ip, long timestamp, CharSequence userId,
+                        CharSequence userAgent, SlowIngestEvent event) {
+        BlockReason blockReason = dao.addressBlockReason(ip, customerId);
+        if (blockReason != null) {
+            counter.markBlocked(blockReason.id());
+            if (!blockReason.countOnly()) {
+                reject(customerId, tagId, ip, timestamp, userId, EventRecord.STATUS_IP_BLACKLISTED);
+                return IngestResult.IP_BLACKLISTED;
+            }
+        }
+
+        if (userAgent != null && dao.userAgentBlacklisted(userAgent, customerId)) {
+            reject(customerId, tagId, ip, timestamp, userId, EventRecord.STATUS_UA_BLACKLISTED);
+            return IngestResult.UA_BLACKLISTED;
+        }
+
+        if (event != null) event.validationTime = event.lap();
+
+        if (!sink.offer(customerId, tagId, ip, timestamp, userId, EventRecord.STATUS_VALID)) {
+            return IngestResult.OVERLOADED;
+        }
+        if (event != null) event.sinkTime = event.lap();
+        counter.markValid(timestamp, customerId);
+        if (event != null) event.countTime = event.lap();
+        return IngestResult.ACCEPTED;
+    }
+
+    /**
+     * Counts an invalid message of a known customer and records it with the status.
+     */
+    void reject(int customerId, int tagId, int ip, long timestamp, CharSequence userId, int status) {
+        counter.markInvalid(timestamp, customerId);
+        sink.offer(customerId, tagId, ip, timestamp, userId, status);
+    }
+}
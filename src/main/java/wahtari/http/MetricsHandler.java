@@ -0,0 +1,56 @@
+package wahtari.http;
+
+import io.undertow.server.HttpHandler;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.util.Headers;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import wahtari.data.BlockReason;
+import wahtari.data.InMemoryDao;
+import wahtari.data.StatsService;
+import wahtari.sink.MessageSink;
+
+
+/**
+ * Exposes internal counters in the Prometheus text format.
+ */
+@Component
+public class MetricsHandler implements HttpHandler {
+
+    private final MessageSink sink;
+    private final StatsService statsService;
+    private final InMemoryDao dao;
+
+    public MetricsHandler(@Autowired MessageSink sink, @Autowired StatsService statsService,
+                          @Autowired InMemoryDao dao) {
+        this.sink = sink;
+        this.statsService = statsService;
+        this.dao = dao;
+    }
+
+    @Override
+    public void handleRequest(HttpServerExchange exchange) {
+        StringBuilder sb = new StringBuilder(256);
+        metric(sb, "wahtari_sink_queue_depth", "gauge", sink.queueDepth());
+        metric(sb, "wahtari_sink_written_total", "counter", sink.writtenCount());
+        metric(sb, "wahtari_sink_dropped_total", "counter", sink.droppedCount());
+        metric(sb, "wahtari_sink_shed_total", "counter", sink.shedCount());
+        metric(sb, "wahtari_stats_late_total", "counter", statsService.lateCount());
+        metric(sb, "wahtari_stats_out_of_window_total", "counter", statsService.outOfWindowCount());
+
+        sb.append("# TYPE wahtari_ip_blocked_total counter\n");
+        for (BlockReason reason : dao.blockReasons()) {
+            sb.append("wahtari_ip_blocked_total{reason=\"").append(reason.name().replace("\\", "\\\\").replace("\"", "\\\""))
+                    .append("\",policy=\"").append(reason.countOnly() ? "count" : "reject").append("\"} ")
+                    .append(statsService.blockedCount(reason.id())).append('\n');
+        }
+
+        exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, "text/plain; version=0.0.4");
+        exchange.getResponseSender().send(sb.toString());
+    }
+
+    private static void metric(StringBuilder sb, String name, String type, long value) {
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+}
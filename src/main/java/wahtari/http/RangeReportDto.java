@@ -0,0 +1,67 @@
+package wahtari.http;
+
+import com.dslplatform.json.CompiledJson;
+import com.dslplatform.json.JsonAttribute;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@CompiledJson
+public class RangeReportDto {
+
+    @JsonAttribute(name = "total")
+    ReportDto.ReportItemDto total = new ReportDto.ReportItemDto(0, 0);
+
+    @JsonAttribute(name = "periods")
+    List<PeriodDto> periods = new ArrayList<>();
+
+    public ReportDto.ReportItemDto getTotal() {
+        return total;
+    }
+
+    public List<PeriodDto> getPeriods() {
+        return periods;
+    }
+
+    public void addPeriod(PeriodDto period) {
+        periods.add(period);
+        total.requests += period.requests;
+        total.invalid += period.invalid;
+    }
+
+    @CompiledJson
+    public static class PeriodDto {
+        @JsonAttribute(name = "start")
+        String start;
+        // "month" or "day"
+        @JsonAttribute(name = "level")
+        String level;
+        @JsonAttribute(name = "requests")
+        long requests;
+        @JsonAttribute(name = "invalid")
+        long invalid;
+
+        public PeriodDto(String start, String level, long requests, long invalid) {
+            this.start = start;
+            this.level = level;
+            this.requests = requests;
+            this.invalid = invalid;
+        }
+
+        public String getStart() {
+            return start;
+        }
+
+        public String getLevel() {
+            return level;
+        }
+
+        public long getRequests() {
+            return requests;
+        }
+
+        public long getInvalid() {
+            return invalid;
+        }
+    }
+}
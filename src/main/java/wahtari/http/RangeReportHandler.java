@@ -0,0 +1,78 @@
+package wahtari.http;
+
+import com.dslplatform.json.DslJson;
+import com.dslplatform.json.PrettifyOutputStream;
+import com.dslplatform.json.runtime.Settings;
+import io.undertow.server.HttpHandler;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.util.Headers;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import wahtari.data.PeriodInfo;
+import wahtari.data.RollupService;
+
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.Deque;
+import java.util.List;
+
+
+/**
+ * {@code /report/range?customerId=1&from=2024-01-01&to=2024-03-31}, both dates inclusive.
+ */
+@Component
+public class RangeReportHandler implements HttpHandler {
+
+    private final RollupService rollupService;
+    private final DslJson<Object> dslJson;
+
+    public RangeReportHandler(@Autowired RollupService rollupService) {
+        this.rollupService = rollupService;
+        this.dslJson = new DslJson<>(Settings.withRuntime().includeServiceLoader());
+    }
+
+    @Override
+    public void handleRequest(HttpServerExchange exchange) throws Exception {
+        String customerIdStr = getParam(exchange, "customerId");
+        String fromStr = getParam(exchange, "from");
+        String toStr = getParam(exchange, "to");
+        if (customerIdStr == null || fromStr == null || toStr == null) {
+            exchange.setStatusCode(400);
+            return;
+        }
+
+        int customerId;
+        LocalDate from;
+        LocalDate to;
+        try {
+            customerId = Integer.parseInt(customerIdStr);
+            from = LocalDate.parse(fromStr);
+            to = LocalDate.parse(toStr);
+        } catch (NumberFormatException | DateTimeParseException e) {
+            exchange.setStatusCode(400);
+            return;
+        }
+        if (to.isBefore(from)) {
+            exchange.setStatusCode(400);
+            return;
+        }
+
+        List<PeriodInfo> report = rollupService.getRangeReport(from, to, customerId);
+        RangeReportDto reportDto = new RangeReportDto();
+        for (PeriodInfo period : report) {
+            reportDto.addPeriod(new RangeReportDto.PeriodDto(period.start().toString(),
+                    period.monthly() ? "month" : "day", period.requestCount(), period.invalidCount()));
+        }
+
+        exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, "application/json");
+        dslJson.serialize(reportDto, new PrettifyOutputStream(exchange.getOutputStream()));
+    }
+
+    private static String getParam(HttpServerExchange exchange, String param) {
+        Deque<String> callbackParam = exchange.getQueryParameters().get(param);
+        if (callbackParam == null) {
+            return null;
+        }
+        return callbackParam.getFirst();
+    }
+}
@@ -0,0 +1,35 @@
+package wahtari.http;
+
+import io.undertow.server.HttpHandler;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.util.Headers;
+import io.undertow.util.StatusCodes;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import wahtari.data.InMemoryDao;
+
+
+/**
+ * {@code /ready}, 200 once the dao has been loaded and the warm-up has finished, 503 before,
+ * for load balancers to hold traffic back after a restart.
+ */
+@Component
+public class ReadyHandler implements HttpHandler {
+
+    private final InMemoryDao dao;
+    private final IngestWarmup warmup;
+
+    public ReadyHandler(@Autowired InMemoryDao dao, @Autowired IngestWarmup warmup) {
+        this.dao = dao;
+        this.warmup = warmup;
+    }
+
+    @Override
+    public void handleRequest(HttpServerExchange exchange) {
+        boolean ready = dao.isLoaded() && warmup.isDone();
+        String state = ready ? "ready" : dao.isLoaded() ? "warming up" : "loading";
+        exchange.setStatusCode(ready ? StatusCodes.OK : StatusCodes.SERVICE_UNAVAILABLE);
+        exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, "text/plain");
+        exchange.getResponseSender().send(state);
+    }
+}
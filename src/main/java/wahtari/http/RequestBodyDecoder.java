@@ -0,0 +1,93 @@
+package wahtari.http;
+
+import io.undertow.server.HttpServerExchange;
+import io.undertow.server.RequestTooBigException;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import wahtari.data.util.BufferPool;
+
+import java.io.InputStream;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Inflater;
+
+
+/**
+ * Opens request bodies according to their {@code Content-Encoding}: identity, {@code gzip}, {@code deflate}
+ * or {@code lz4} (LZ4 frame format). Bodies are limited to {@code ingest.body.maxBytes} as received
+ * and to {@code ingest.body.maxDecodedBytes} once decoded, so that small compressed bodies can't expand
+ * into large ones. Buffers and inflaters are pooled.
+ */
+@Component
+public class RequestBodyDecoder {
+
+    private final long maxBytes;
+    private final long maxDecodedBytes;
+    private final int maxIdle;
+    private final BufferPool inputPool;
+    private final BufferPool lz4OutputPool;
+    private final Queue<Inflater> zlibInflaters = new ConcurrentLinkedQueue<>();
+    private final Queue<Inflater> rawInflaters = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger idleInflaters = new AtomicInteger();
+
+    public RequestBodyDecoder(@Value("${ingest.body.maxBytes:65536}") int maxBytes,
+                              @Value("${ingest.body.maxDecodedBytes:65536}") int maxDecodedBytes,
+                              @Value("${ingest.body.pool.maxIdle:128}") int maxIdle) {
+        this.maxBytes = maxBytes;
+        this.maxDecodedBytes = maxDecodedBytes;
+        this.maxIdle = maxIdle;
+        this.inputPool = new BufferPool(maxBytes, maxIdle);
+        this.lz4OutputPool = new BufferPool(maxDecodedBytes, maxIdle, false);
+    }
+
+    /**
+     * Must be called before anything else reads the request body.
+     *
+     * @return the decoded body, null if the encoding is not supported
+     */
+    public InputStream open(HttpServerExchange exchange, String contentEncoding) {
+        exchange.setMaxEntitySize(maxBytes);
+        if (contentEncoding == null || contentEncoding.equalsIgnoreCase("identity")) {
+            return exchange.getInputStream();
+        } else if (contentEncoding.equalsIgnoreCase("gzip") || contentEncoding.equalsIgnoreCase("x-gzip")) {
+            return new InflaterBodyStream(exchange.getRequestChannel(), inputPool, maxDecodedBytes, true, this);
+        } else if (contentEncoding.equalsIgnoreCase("deflate")) {
+            return new InflaterBodyStream(exchange.getRequestChannel(), inputPool, maxDecodedBytes, false, this);
+        } else if (contentEncoding.equalsIgnoreCase("lz4")) {
+            return new Lz4FrameBodyStream(exchange.getRequestChannel(), inputPool, lz4OutputPool, maxDecodedBytes);
+        }
+        return null;
+    }
+
+    /**
+     * @return true if reading a body failed because of its size
+     */
+    public static boolean isTooLarge(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof CompressedBodyStream.BodyTooLargeException || cause instanceof RequestTooBigException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    Inflater acquireInflater(boolean nowrap) {
+        Inflater inflater = (nowrap ? rawInflaters : zlibInflaters).poll();
+        if (inflater == null) {
+            return new Inflater(nowrap);
+        }
+        idleInflaters.decrementAndGet();
+        return inflater;
+    }
+
+    void releaseInflater(Inflater inflater, boolean nowrap) {
+        if (idleInflaters.incrementAndGet() > maxIdle) {
+            idleInflaters.decrementAndGet();
+            inflater.end();
+            return;
+        }
+        inflater.reset();
+        (nowrap ? rawInflaters : zlibInflaters).offer(inflater);
+    }
+}
@@ -0,0 +1,59 @@
+package wahtari.http;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+import jdk.jfr.Timespan;
+
+@Name("wahtari.SlowIngest")
+@Label("Slow Ingest")
+@Description("Ingest request slower than the threshold, with the time spent in each stage")
+@Category("Wahtari")
+@Threshold("20 ms")
+@StackTrace(false)
+class SlowIngestEvent extends jdk.jfr.Event {
+
+    @Label("Customer Id")
+    int customerId;
+
+    @Label("Result")
+    String result;
+
+    @Label("Parse Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long parseTime;
+
+    @Label("Validation Time")
+    @Description("Customer, IP and user agent checks")
+    @Timespan(Timespan.NANOSECONDS)
+    long validationTime;
+
+    @Label("Sink Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long sinkTime;
+
+    @Label("Count Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long countTime;
+
+    // not recorded
+    private transient long mark;
+
+    void start() {
+        begin();
+        mark = System.nanoTime();
+    }
+
+    /**
+     * @return nanoseconds since the previous call or {@link #start()}
+     */
+    long lap() {
+        long now = System.nanoTime();
+        long elapsed = now - mark;
+        mark = now;
+        return elapsed;
+    }
+}
@@ -0,0 +1,97 @@
+package wahtari.sink;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Read access to the local event log, i.e. segment files written by {@link FileSegmentWriter}
+ * or {@link MappedSegmentWriter}. Segments are scanned through read-only memory mappings.
+ */
+public final class EventLog {
+
+    static final int INDEX_ENTRY_SIZE = 24;
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String INDEX_SUFFIX = ".idx";
+
+    public interface RecordVisitor {
+        void visit(ByteBuffer segment, int offset);
+    }
+
+    private EventLog() {}
+
+    static String segmentName(int partition, long millis) {
+        return "events-p" + partition + "-" + millis + SEGMENT_SUFFIX;
+    }
+
+    static Path indexPath(Path segment) {
+        String name = segment.getFileName().toString();
+        return segment.resolveSibling(name.substring(0, name.length() - SEGMENT_SUFFIX.length()) + INDEX_SUFFIX);
+    }
+
+    public static List<Path> segments(Path dir) throws IOException {
+        if (!Files.isDirectory(dir)) {
+            return List.of();
+        }
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(p -> p.getFileName().toString().endsWith(SEGMENT_SUFFIX)).sorted().toList();
+        }
+    }
+
+    /**
+     * Visits every record of the segment with a timestamp in {@code [fromTs, toTs)}.
+     * Blocks which the sparse index proves to be out of range are skipped.
+     *
+     * @return number of visited records
+     */
+    public static long scan(Path segment, long fromTs, long toTs, RecordVisitor visitor) throws IOException {
+        MappedByteBuffer buf;
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+            buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        int totalRecords = buf.capacity() / EventRecord.SIZE;
+
+        long visited = 0;
+        int indexed = 0;
+        Path index = indexPath(segment);
+        if (Files.exists(index)) {
+            ByteBuffer entries = ByteBuffer.wrap(Files.readAllBytes(index));
+            while (entries.remaining() >= INDEX_ENTRY_SIZE) {
+                int start = entries.getInt();
+                int count = entries.getInt();
+                long minTs = entries.getLong();
+                long maxTs = entries.getLong();
+                if (maxTs >= fromTs && minTs < toTs) {
+                    visited += scanRange(buf, start, Math.min(start + count, totalRecords), fromTs, toTs, visitor);
+                }
+                indexed = start + count;
+            }
+        }
+        // records after the last index entry, e.g. of a segment which was not closed properly
+        visited += scanRange(buf, indexed, totalRecords, fromTs, toTs, visitor);
+        return visited;
+    }
+
+    private static long scanRange(ByteBuffer buf, int from, int to, long fromTs, long toTs, RecordVisitor visitor) {
+        long visited = 0;
+        for (int i = from; i < to; i++) {
+            int offset = i * EventRecord.SIZE;
+            if (!EventRecord.isRecord(buf, offset)) {
+                break;
+            }
+            long ts = EventRecord.timestamp(buf, offset);
+            if (ts >= fromTs && ts < toTs) {
+                visitor.visit(buf, offset);
+                visited++;
+            }
+        }
+        return visited;
+    }
+}
@@ -0,0 +1,119 @@
+package wahtari.sink;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Fixed-width binary layout of an ingested event (big-endian, 40 bytes):
+ * <pre>
+ *  0  int   customer id
+ *  4  int   tag id
+ *  8  int   remote IPv4 address
+ * 12  int   flags: magic byte + status code
+ * 16  long  timestamp, epoch seconds
+ * 24  long  user id, most significant bits
+ * 32  long  user id, least significant bits
+ * </pre>
+ * In the ring buffer the same record occupies {@link #WORDS} longs.
+ */
+public final class EventRecord {
+
+    public static final int SIZE = 40;
+    public static final int WORDS = 5;
+
+    public static final int STATUS_VALID = 0;
+    public static final int STATUS_MISSING_FIELDS = 1;
+    public static final int STATUS_CUSTOMER_INACTIVE = 2;
+    public static final int STATUS_IP_INVALID = 3;
+    public static final int STATUS_IP_BLACKLISTED = 4;
+    public static final int STATUS_UA_BLACKLISTED = 5;
+
+    private static final int MAGIC = 0x5A;
+
+    private EventRecord() {}
+
+    static long packIds(int customerId, int tagId) {
+        return ((long) customerId << 32) | (tagId & 0xffffffffL);
+    }
+
+    static long packAddress(int ip, int status) {
+        return ((long) ip << 32) | (((MAGIC << 24) | (status & 0xffffff)) & 0xffffffffL);
+    }
+
+    /**
+     * Copies a record from its ring buffer representation.
+     */
+    static void encode(long[] words, int offset, ByteBuffer out) {
+        out.putLong(words[offset]);
+        out.putLong(words[offset + 1]);
+        out.putLong(words[offset + 2]);
+        out.putLong(words[offset + 3]);
+        out.putLong(words[offset + 4]);
+    }
+
+    public static boolean isRecord(ByteBuffer buf, int offset) {
+        return buf.get(offset + 12) == MAGIC;
+    }
+
+    public static int customerId(ByteBuffer buf, int offset) {
+        return buf.getInt(offset);
+    }
+
+    public static int tagId(ByteBuffer buf, int offset) {
+        return buf.getInt(offset + 4);
+    }
+
+    public static int ip(ByteBuffer buf, int offset) {
+        return buf.getInt(offset + 8);
+    }
+
+    public static int status(ByteBuffer buf, int offset) {
+        return buf.getInt(offset + 12) & 0xffffff;
+    }
+
+    public static long timestamp(ByteBuffer buf, int offset) {
+        return buf.getLong(offset + 16);
+    }
+
+    public static long userIdMsb(ByteBuffer buf, int offset) {
+        return buf.getLong(offset + 24);
+    }
+
+    public static long userIdLsb(ByteBuffer buf, int offset) {
+        return buf.getLong(offset + 32);
+    }
+
+    /**
+     * Parses the upper half of a canonical UUID string without allocating.
+     * Malformed ids are stored as zeroes.
+     */
+    static long uuidMsb(CharSequence uuid) {
+        if (!isCanonicalUuid(uuid)) return 0;
+        return hex(uuid, 0, 8) << 32 | hex(uuid, 9, 13) << 16 | hex(uuid, 14, 18);
+    }
+
+    static long uuidLsb(CharSequence uuid) {
+        if (!isCanonicalUuid(uuid)) return 0;
+        return hex(uuid, 19, 23) << 48 | hex(uuid, 24, 36);
+    }
+
+    private static boolean isCanonicalUuid(CharSequence s) {
+        if (s == null || s.length() != 36) return false;
+        for (int i = 0; i < 36; i++) {
+            char c = s.charAt(i);
+            if (i == 8 || i == 13 || i == 18 || i == 23) {
+                if (c != '-') return false;
+            } else if (Character.digit(c, 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long hex(CharSequence s, int from, int to) {
+        long result = 0;
+        for (int i = from; i < to; i++) {
+            result = (result << 4) | Character.digit(s.charAt(i), 16);
+        }
+        return result;
+    }
+}
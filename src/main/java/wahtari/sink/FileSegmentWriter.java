@@ -0,0 +1,77 @@
+package wahtari.sink;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes records into local segment files {@code events-p<partition>-<millis>.seg} via a {@link FileChannel},
+ * starting a new segment when the current one exceeds the size or age limit.
+ */
+public class FileSegmentWriter implements SegmentWriter {
+
+    private static final Logger log = LoggerFactory.getLogger(FileSegmentWriter.class);
+
+    private final Path dir;
+    private final int partition;
+    private final long maxBytes;
+    private final long maxAgeMs;
+
+    private FileChannel channel;
+    private long segmentStart;
+    private long written;
+
+    public FileSegmentWriter(Path dir, int partition, long maxBytes, long maxAgeMs) throws IOException {
+        this.dir = dir;
+        this.partition = partition;
+        this.maxBytes = maxBytes;
+        this.maxAgeMs = maxAgeMs;
+        Files.createDirectories(dir);
+    }
+
+    @Override
+    public void write(ByteBuffer batch) throws IOException {
+        if (channel == null || written + batch.remaining() > maxBytes) {
+            roll();
+        }
+        while (batch.hasRemaining()) {
+            written += channel.write(batch);
+        }
+    }
+
+    @Override
+    public void tick() throws IOException {
+        if (channel != null && System.currentTimeMillis() - segmentStart >= maxAgeMs) {
+            closeSegment();
+        }
+    }
+
+    private void roll() throws IOException {
+        closeSegment();
+        // segment names must stay unique even if several segments are rolled within a millisecond
+        segmentStart = Math.max(System.currentTimeMillis(), segmentStart + 1);
+        Path path = dir.resolve(EventLog.segmentName(partition, segmentStart));
+        channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        written = 0;
+        log.debug("Opened segment {}", path);
+    }
+
+    private void closeSegment() throws IOException {
+        if (channel != null) {
+            channel.force(false);
+            channel.close();
+            channel = null;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        closeSegment();
+    }
+}
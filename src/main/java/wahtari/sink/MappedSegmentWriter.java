@@ -0,0 +1,139 @@
+package wahtari.sink;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes records into pre-allocated memory-mapped segment files, so appending a batch
+ * is a plain memory copy. Next to every segment a sparse index {@code .idx} is kept:
+ * for each block of {@code indexInterval} records it stores the minimal and maximal
+ * timestamp, which lets readers skip blocks outside of a requested time range.
+ *
+ * Segments keep their zero-filled tail when they are closed before they are full, or left behind
+ * by a crash; readers stop at the first slot without a record marker. The file is not truncated:
+ * the mapping can't be released explicitly and shrinking a mapped file fails on some platforms
+ * and crashes later accesses on others. The tail is never written, so it stays sparse on the usual filesystems.
+ */
+public class MappedSegmentWriter implements SegmentWriter {
+
+    private static final Logger log = LoggerFactory.getLogger(MappedSegmentWriter.class);
+
+    private final Path dir;
+    private final int partition;
+    private final int segmentRecords;
+    private final long maxAgeMs;
+    private final int indexInterval;
+
+    private FileChannel channel;
+    private FileChannel indexChannel;
+    private MappedByteBuffer mapped;
+    private final ByteBuffer indexEntry = ByteBuffer.allocateDirect(EventLog.INDEX_ENTRY_SIZE);
+    private long segmentStart;
+
+    private int records;
+    private int blockStart;
+    private long blockMinTs;
+    private long blockMaxTs;
+
+    public MappedSegmentWriter(Path dir, int partition, long maxBytes, long maxAgeMs, int indexInterval)
+            throws IOException {
+        if (maxBytes < EventRecord.SIZE) {
+            throw new IllegalArgumentException("Segment size below one record: " + maxBytes);
+        }
+        this.dir = dir;
+        this.partition = partition;
+        this.segmentRecords = (int) Math.min(Integer.MAX_VALUE / EventRecord.SIZE, maxBytes / EventRecord.SIZE);
+        this.maxAgeMs = maxAgeMs;
+        this.indexInterval = indexInterval;
+        Files.createDirectories(dir);
+    }
+
+    @Override
+    public void write(ByteBuffer batch) throws IOException {
+        while (batch.hasRemaining()) {
+            if (mapped == null || !mapped.hasRemaining()) {
+                roll();
+            }
+            int count = Math.min(batch.remaining(), mapped.remaining()) / EventRecord.SIZE;
+            for (int i = 0; i < count; i++) {
+                append(batch, batch.position() + i * EventRecord.SIZE);
+            }
+            ByteBuffer slice = batch.slice(batch.position(), count * EventRecord.SIZE);
+            mapped.put(slice);
+            batch.position(batch.position() + count * EventRecord.SIZE);
+        }
+    }
+
+    private void append(ByteBuffer batch, int offset) throws IOException {
+        long ts = EventRecord.timestamp(batch, offset);
+        if (records == blockStart) {
+            blockMinTs = ts;
+            blockMaxTs = ts;
+        } else {
+            blockMinTs = Math.min(blockMinTs, ts);
+            blockMaxTs = Math.max(blockMaxTs, ts);
+        }
+        records++;
+        if (records - blockStart == indexInterval) {
+            writeIndexEntry();
+        }
+    }
+
+    private void writeIndexEntry() throws IOException {
+        indexEntry.clear();
+        indexEntry.putInt(blockStart).putInt(records - blockStart).putLong(blockMinTs).putLong(blockMaxTs);
+        indexEntry.flip();
+        while (indexEntry.hasRemaining()) {
+            indexChannel.write(indexEntry);
+        }
+        blockStart = records;
+    }
+
+    @Override
+    public void tick() throws IOException {
+        if (mapped != null && System.currentTimeMillis() - segmentStart >= maxAgeMs) {
+            closeSegment();
+        }
+    }
+
+    private void roll() throws IOException {
+        closeSegment();
+        segmentStart = Math.max(System.currentTimeMillis(), segmentStart + 1);
+        Path path = dir.resolve(EventLog.segmentName(partition, segmentStart));
+        channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        indexChannel = FileChannel.open(EventLog.indexPath(path), StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.WRITE);
+        mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, (long) segmentRecords * EventRecord.SIZE);
+        records = 0;
+        blockStart = 0;
+        log.debug("Opened mapped segment {}", path);
+    }
+
+    private void closeSegment() throws IOException {
+        if (mapped == null) {
+            return;
+        }
+        if (records > blockStart) {
+            writeIndexEntry();
+        }
+        mapped.force();
+        mapped = null;
+        channel.close();
+        indexChannel.force(false);
+        indexChannel.close();
+    }
+
+    @Override
+    public void close() throws IOException {
+        closeSegment();
+    }
+}
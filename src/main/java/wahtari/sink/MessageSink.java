@@ -0,0 +1,35 @@
+package wahtari.sink;
+
+/**
+ * Downstream destination of accepted messages, and of rejected messages of known customers,
+ * which are recorded with a non-zero status so that statistics can be recomputed from the log.
+ * Implementations must not block the calling I/O or worker thread on I/O.
+ */
+public interface MessageSink extends AutoCloseable {
+
+    /**
+     * @param status one of the {@code EventRecord.STATUS_*} codes
+     * @return false if the message was shed and the client should be asked to retry
+     */
+    boolean offer(int customerId, int tagId, int ip, long timestamp, CharSequence userId, int status);
+
+    default long queueDepth() {
+        return 0;
+    }
+
+    default long droppedCount() {
+        return 0;
+    }
+
+    default long shedCount() {
+        return 0;
+    }
+
+    default long writtenCount() {
+        return 0;
+    }
+
+    @Override
+    default void close() {
+    }
+}
@@ -0,0 +1,9 @@
+package wahtari.sink;
+
+public class NoopSink implements MessageSink {
+
+    @Override
+    public boolean offer(int customerId, int tagId, int ip, long timestamp, CharSequence userId, int status) {
+        return true;
+    }
+}
@@ -0,0 +1,13 @@
+package wahtari.sink;
+
+/**
+ * What {@link RingBufferSink} does with a message when its ring buffer is full.
+ */
+public enum OverflowPolicy {
+    /** discard the message, the request is still acknowledged */
+    DROP,
+    /** wait for a free slot up to the configured timeout, then drop */
+    BLOCK,
+    /** reject the request so that the collector retries it later */
+    SHED
+}
@@ -0,0 +1,243 @@
+package wahtari.sink;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import wahtari.data.util.MpscRecordRing;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous sink: request threads put records into bounded lock-free rings,
+ * one drainer thread per ring batches them into a direct buffer and hands
+ * the batch to its own {@link SegmentWriter}. A writer which fails is closed and reopened with back-off.
+ *
+ * Messages of one customer always go to the same ring, so their order is preserved.
+ */
+public class RingBufferSink implements MessageSink {
+
+    private static final Logger log = LoggerFactory.getLogger(RingBufferSink.class);
+
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    // back-off of reopening a failed writer
+    private static final long RETRY_INITIAL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long RETRY_MAX_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    public interface WriterFactory {
+        SegmentWriter create(int partition) throws IOException;
+    }
+
+    private final Drainer[] drainers;
+    private final OverflowPolicy overflowPolicy;
+    private final long blockTimeoutNanos;
+
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong shed = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+
+    private volatile boolean running = true;
+
+    public RingBufferSink(int partitions, int capacity, int batchSize,
+                          OverflowPolicy overflowPolicy, long blockTimeoutMs,
+                          WriterFactory writerFactory) throws IOException {
+        this.overflowPolicy = overflowPolicy;
+        this.blockTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(blockTimeoutMs);
+        this.drainers = new Drainer[partitions];
+        for (int i = 0; i < partitions; i++) {
+            drainers[i] = new Drainer(i, new MpscRecordRing(capacity, EventRecord.WORDS), writerFactory, batchSize);
+        }
+        for (Drainer drainer : drainers) {
+            drainer.start();
+        }
+    }
+
+    @Override
+    public boolean offer(int customerId, int tagId, int ip, long timestamp, CharSequence userId, int status) {
+        MpscRecordRing ring = drainers[Math.floorMod(customerId, drainers.length)].ring;
+
+        long pos = ring.claim();
+        if (pos == MpscRecordRing.FULL) {
+            pos = onOverflow(ring);
+            if (pos == MpscRecordRing.FULL) {
+                return overflowPolicy != OverflowPolicy.SHED;
+            }
+        }
+
+        ring.put(pos, 0, EventRecord.packIds(customerId, tagId));
+        ring.put(pos, 1, EventRecord.packAddress(ip, status));
+        ring.put(pos, 2, timestamp);
+        ring.put(pos, 3, EventRecord.uuidMsb(userId));
+        ring.put(pos, 4, EventRecord.uuidLsb(userId));
+        ring.publish(pos);
+        return true;
+    }
+
+    private long onOverflow(MpscRecordRing ring) {
+        switch (overflowPolicy) {
+            case BLOCK -> {
+                long deadline = System.nanoTime() + blockTimeoutNanos;
+                while (System.nanoTime() < deadline) {
+                    LockSupport.parkNanos(IDLE_PARK_NANOS / 10);
+                    long pos = ring.claim();
+                    if (pos != MpscRecordRing.FULL) {
+                        return pos;
+                    }
+                }
+                dropped.incrementAndGet();
+            }
+            case SHED -> shed.incrementAndGet();
+            default -> dropped.incrementAndGet();
+        }
+        return MpscRecordRing.FULL;
+    }
+
+    @Override
+    public long queueDepth() {
+        long depth = 0;
+        for (Drainer drainer : drainers) {
+            depth += drainer.ring.size();
+        }
+        return depth;
+    }
+
+    @Override
+    public long droppedCount() {
+        return dropped.get();
+    }
+
+    @Override
+    public long shedCount() {
+        return shed.get();
+    }
+
+    @Override
+    public long writtenCount() {
+        return written.get();
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        for (Drainer drainer : drainers) {
+            // may be waiting to reopen its writer
+            LockSupport.unpark(drainer);
+            try {
+                drainer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private class Drainer extends Thread implements MpscRecordRing.RecordConsumer {
+        private final int partition;
+        private final MpscRecordRing ring;
+        private final WriterFactory writerFactory;
+        private final ByteBuffer batch;
+        // null after a failure until it is reopened
+        private SegmentWriter writer;
+        private long retryDelayNanos = RETRY_INITIAL_NANOS;
+
+        Drainer(int partition, MpscRecordRing ring, WriterFactory writerFactory, int batchSize) throws IOException {
+            super("sink-drainer-" + partition);
+            setDaemon(true);
+            this.partition = partition;
+            this.ring = ring;
+            this.writerFactory = writerFactory;
+            this.writer = writerFactory.create(partition);
+            this.batch = ByteBuffer.allocateDirect(batchSize * EventRecord.SIZE);
+        }
+
+        @Override
+        public void accept(long[] data, int offset) {
+            EventRecord.encode(data, offset, batch);
+        }
+
+        @Override
+        public void run() {
+            while (running || ring.size() > 0) {
+                if (writer == null && !reopen()) {
+                    if (!running) {
+                        dropped.addAndGet(ring.size());
+                        log.error("Sink writer of {} unavailable on shutdown, {} records dropped", getName(),
+                                ring.size());
+                        return;
+                    }
+                    continue;
+                }
+                try {
+                    int drained = ring.drain(this, batch.remaining() / EventRecord.SIZE);
+                    if (batch.position() > 0 && (drained == 0 || !batch.hasRemaining())) {
+                        flush();
+                    }
+                    if (drained == 0) {
+                        writer.tick();
+                        LockSupport.parkNanos(IDLE_PARK_NANOS);
+                    }
+                } catch (IOException e) {
+                    // the ring fills up in the meantime and the overflow policy applies
+                    log.error("Sink writer of {} failed, reopening in {} ms", getName(),
+                            TimeUnit.NANOSECONDS.toMillis(retryDelayNanos), e);
+                    closeWriter();
+                }
+            }
+            try {
+                if (batch.position() > 0) {
+                    flush();
+                }
+            } catch (IOException e) {
+                log.error("Failed to write the last batch of {}", getName(), e);
+            }
+            closeWriter();
+        }
+
+        /**
+         * Waits for the back-off delay, then opens a new writer.
+         *
+         * @return false if it failed again
+         */
+        private boolean reopen() {
+            LockSupport.parkNanos(retryDelayNanos);
+            try {
+                writer = writerFactory.create(partition);
+                retryDelayNanos = RETRY_INITIAL_NANOS;
+                log.info("Sink writer of {} reopened", getName());
+                return true;
+            } catch (IOException e) {
+                retryDelayNanos = Math.min(retryDelayNanos * 2, RETRY_MAX_NANOS);
+                log.error("Failed to reopen sink writer of {}", getName(), e);
+                return false;
+            }
+        }
+
+        private void flush() throws IOException {
+            int records = batch.position() / EventRecord.SIZE;
+            batch.flip();
+            try {
+                writer.write(batch);
+                written.addAndGet(records);
+            } catch (IOException e) {
+                dropped.addAndGet(records);
+                throw e;
+            } finally {
+                batch.clear();
+            }
+        }
+
+        private void closeWriter() {
+            if (writer == null) {
+                return;
+            }
+            try {
+                writer.close();
+            } catch (IOException e) {
+                log.error("Failed to close sink writer", e);
+            } finally {
+                writer = null;
+            }
+        }
+    }
+}
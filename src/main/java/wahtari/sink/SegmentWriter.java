@@ -0,0 +1,24 @@
+package wahtari.sink;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Append-only storage of encoded {@link EventRecord}s. Used by a single drainer thread.
+ */
+public interface SegmentWriter extends AutoCloseable {
+
+    /**
+     * Appends all remaining bytes of the batch, which holds whole records only.
+     */
+    void write(ByteBuffer batch) throws IOException;
+
+    /**
+     * Called periodically when there is nothing to write, e.g. to roll segments by age.
+     */
+    default void tick() throws IOException {
+    }
+
+    @Override
+    void close() throws IOException;
+}
@@ -0,0 +1,21 @@
+CREATE TABLE `daily_stats` (
+    `id` int(11) unsigned NOT NULL AUTO_INCREMENT,
+    `customer_id` int(11) unsigned NOT NULL,
+    `period` date NOT NULL,
+    `request_count` bigint(20) unsigned NOT NULL DEFAULT '0',
+    `invalid_count` bigint(20) unsigned NOT NULL DEFAULT '0',
+    PRIMARY KEY (`id`),
+    UNIQUE KEY `unique_customer_day` (`customer_id`,`period`),
+    CONSTRAINT `daily_stats_customer_id` FOREIGN KEY (`customer_id`) REFERENCES `customer` (`id`) ON DELETE CASCADE ON UPDATE NO ACTION
+);
+
+CREATE TABLE `monthly_stats` (
+    `id` int(11) unsigned NOT NULL AUTO_INCREMENT,
+    `customer_id` int(11) unsigned NOT NULL,
+    `period` date NOT NULL,
+    `request_count` bigint(20) unsigned NOT NULL DEFAULT '0',
+    `invalid_count` bigint(20) unsigned NOT NULL DEFAULT '0',
+    PRIMARY KEY (`id`),
+    UNIQUE KEY `unique_customer_month` (`customer_id`,`period`),
+    CONSTRAINT `monthly_stats_customer_id` FOREIGN KEY (`customer_id`) REFERENCES `customer` (`id`) ON DELETE CASCADE ON UPDATE NO ACTION
+);
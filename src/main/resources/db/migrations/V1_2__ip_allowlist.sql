@@ -0,0 +1,7 @@
+-- Exceptions from ip_blacklist, e.g. a /28 which stays allowed inside a blacklisted /16.
+-- The longest matching prefix of both tables decides.
+CREATE TABLE `ip_allowlist` (
+    `address` bigint(11) unsigned NOT NULL,
+    `netmask_bits` int(11) NOT NULL,
+    PRIMARY KEY (`address`, `netmask_bits`)
+);
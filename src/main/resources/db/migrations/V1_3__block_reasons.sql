@@ -0,0 +1,14 @@
+-- Why an address is blacklisted and what to do about it. Ids must be within 1..127.
+-- With count_only set, matching requests are accepted and only counted per reason.
+CREATE TABLE `block_reason` (
+    `id` int(11) unsigned NOT NULL,
+    `name` varchar(64) NOT NULL,
+    `count_only` tinyint(1) unsigned NOT NULL DEFAULT '0',
+    PRIMARY KEY (`id`)
+);
+
+INSERT INTO `block_reason` VALUES
+(1, 'blacklist', 0);
+
+ALTER TABLE `ip_blacklist` ADD COLUMN `reason_id` int(11) unsigned NOT NULL DEFAULT '1';
+ALTER TABLE `ip_blacklist` ADD CONSTRAINT `ip_blacklist_reason_id` FOREIGN KEY (`reason_id`) REFERENCES `block_reason` (`id`);
@@ -0,0 +1,15 @@
+-- Blacklists which apply to a single customer, on top of the global ones.
+CREATE TABLE `customer_ip_blacklist` (
+    `customer_id` int(11) unsigned NOT NULL,
+    `address` bigint(11) unsigned NOT NULL,
+    `netmask_bits` int(11) NOT NULL,
+    PRIMARY KEY (`customer_id`, `address`, `netmask_bits`),
+    CONSTRAINT `customer_ip_blacklist_customer_id` FOREIGN KEY (`customer_id`) REFERENCES `customer` (`id`) ON DELETE CASCADE ON UPDATE NO ACTION
+);
+
+CREATE TABLE `customer_ua_blacklist` (
+    `customer_id` int(11) unsigned NOT NULL,
+    `ua` varchar(255) NOT NULL,
+    PRIMARY KEY (`customer_id`, `ua`),
+    CONSTRAINT `customer_ua_blacklist_customer_id` FOREIGN KEY (`customer_id`) REFERENCES `customer` (`id`) ON DELETE CASCADE ON UPDATE NO ACTION
+);
@@ -0,0 +1,458 @@
+package wahtari.binary;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import wahtari.data.InMemoryDao;
+import wahtari.data.MessageCounter;
+import wahtari.data.util.BufferPool;
+import wahtari.http.IngestResult;
+import wahtari.http.MessageValidator;
+import wahtari.sink.NoopSink;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketOption;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.spi.SelectorProvider;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Binary protocol over a unix domain socket, against the test data of the database:
+ * customers 1, 2 and 4 are active, 3 is inactive, 127.0.0.0/16 is blacklisted.
+ */
+@SpringBootTest
+@Timeout(30)
+class BinaryConnectionTests {
+
+    // small frames, so that a few pipelined frames fill the output buffer
+    private static final int MAX_FRAME_BYTES = 64;
+    private static final long NOW = System.currentTimeMillis() / 1000;
+    private static final int ADDRESS = 0x01020304;
+
+    @Autowired
+    private InMemoryDao dao;
+
+    @TempDir
+    Path dir;
+
+    private final AtomicInteger counted = new AtomicInteger();
+    private MessageValidator validator;
+    private BinaryIngestServer server;
+    private SocketChannel client;
+
+    @BeforeEach
+    void start() throws IOException {
+        dao.reload();
+        MessageCounter counter = new MessageCounter() {
+            @Override
+            public void markValid(long ts, int customerId) {
+                counted.incrementAndGet();
+            }
+
+            @Override
+            public void markInvalid(long ts, int customerId) {
+                counted.incrementAndGet();
+            }
+
+            @Override
+            public void markBlocked(int reasonId) {
+            }
+        };
+        validator = new MessageValidator(counter, dao, new NoopSink());
+        Path socket = dir.resolve("ingest.sock");
+        server = new BinaryIngestServer(validator, 0, "127.0.0.1", socket.toString(), 1, MAX_FRAME_BYTES, 4);
+        server.start();
+        client = SocketChannel.open(UnixDomainSocketAddress.of(socket));
+    }
+
+    @AfterEach
+    void stop() throws IOException {
+        client.close();
+        server.stop();
+    }
+
+    @Test
+    void answersEveryMessageOfPipelinedFrames() throws IOException {
+        write(frame(message(1, ADDRESS), message(3, ADDRESS)));
+        write(frame(message(99, ADDRESS)));
+        write(frame(message(2, 0x7f000001)));
+
+        assertArrayEquals(new byte[]{code(IngestResult.ACCEPTED), code(IngestResult.CUSTOMER_INACTIVE)}, response());
+        assertArrayEquals(new byte[]{code(IngestResult.CUSTOMER_NOT_FOUND)}, response());
+        assertArrayEquals(new byte[]{code(IngestResult.IP_BLACKLISTED)}, response());
+    }
+
+    @Test
+    void answersFrameSplitOverWrites() throws IOException, InterruptedException {
+        byte[] frame = frame(message(1, ADDRESS));
+        for (byte b : frame) {
+            write(new byte[]{b});
+            Thread.sleep(1);
+        }
+        assertArrayEquals(new byte[]{code(IngestResult.ACCEPTED)}, response());
+    }
+
+    @Test
+    void answersFramesPipelinedBeyondTheOutputBuffer() throws Exception {
+        // the client writes faster than it reads, so the output buffer fills and drains over and over,
+        // frames wait for it while responses are being written
+        int frames = 10_000;
+        byte[] frame = frame(message(1, ADDRESS));
+        Thread writer = new Thread(() -> {
+            try {
+                for (int i = 0; i < frames; i++) {
+                    write(frame);
+                }
+            } catch (IOException e) {
+                // the reader fails on the closed connection
+            }
+        });
+        writer.start();
+        Thread.sleep(100);
+        for (int i = 0; i < frames; i++) {
+            assertArrayEquals(new byte[]{code(IngestResult.ACCEPTED)}, response());
+        }
+        writer.join();
+        assertEquals(frames, counted.get());
+    }
+
+    @Test
+    void handlesWaitingFrameWhenResponsesDrainAtOnce() throws IOException {
+        ScriptedChannel channel = new ScriptedChannel();
+        BinaryConnection connection = connection(channel);
+        ScriptedKey key = (ScriptedKey) channel.key;
+        byte[] frame = frame(message(1, ADDRESS));
+        int responseBytes = BinaryFrame.RESPONSE_HEADER_BYTES + 1;
+
+        // the peer doesn't read, the responses of 12 frames fill the output buffer
+        for (int i = 0; i < 12; i++) {
+            channel.input(frame);
+            connection.onReadable();
+        }
+        assertEquals(0, channel.written.size());
+
+        // the 13th frame doesn't fit, and the peer reads all responses meanwhile:
+        // no event would come for the frame left in the input buffer
+        channel.writable = true;
+        channel.input(frame);
+        connection.onReadable();
+        assertEquals(13 * responseBytes, channel.written.size());
+        assertEquals(SelectionKey.OP_READ, key.interestOps());
+    }
+
+    @Test
+    void keepsPartialFrameUntilItIsComplete() throws IOException {
+        ScriptedChannel channel = new ScriptedChannel();
+        channel.writable = true;
+        BinaryConnection connection = connection(channel);
+        byte[] frame = frame(message(1, ADDRESS));
+
+        // part of the length, then part of the first message, then the rest
+        for (int[] range : new int[][]{{0, 3}, {3, 14}, {14, frame.length}}) {
+            assertEquals(0, channel.written.size());
+            channel.input(Arrays.copyOfRange(frame, range[0], range[1]));
+            connection.onReadable();
+        }
+
+        ByteBuffer response = ByteBuffer.wrap(channel.written.toByteArray());
+        assertEquals(BinaryFrame.RESPONSE_HEADER_BYTES + 1, response.remaining());
+        assertEquals(1, response.getInt());
+        assertEquals(code(IngestResult.ACCEPTED), response.get());
+        assertEquals(1, counted.get());
+    }
+
+    @Test
+    void stopsReadingUntilPendingResponsesAreWritten() throws IOException {
+        ScriptedChannel channel = new ScriptedChannel();
+        BinaryConnection connection = connection(channel);
+        ScriptedKey key = (ScriptedKey) channel.key;
+        byte[] frame = frame(message(1, ADDRESS), message(3, ADDRESS));
+        int responseBytes = BinaryFrame.RESPONSE_HEADER_BYTES + 2;
+
+        // the peer doesn't read, the 11th frame doesn't fit into the output buffer
+        for (int i = 0; i < 11; i++) {
+            channel.input(frame);
+            connection.onReadable();
+        }
+        assertEquals(SelectionKey.OP_WRITE, key.interestOps());
+        assertEquals(10 * 2, counted.get());
+
+        channel.writable = true;
+        connection.onWritable();
+        assertEquals(11 * responseBytes, channel.written.size());
+        assertEquals(11 * 2, counted.get());
+        assertEquals(SelectionKey.OP_READ, key.interestOps());
+        ByteBuffer responses = ByteBuffer.wrap(channel.written.toByteArray());
+        for (int i = 0; i < 11; i++) {
+            assertEquals(2, responses.getInt());
+            assertEquals(code(IngestResult.ACCEPTED), responses.get());
+            assertEquals(code(IngestResult.CUSTOMER_INACTIVE), responses.get());
+        }
+    }
+
+    @Test
+    void closesOnFrameLargerThanTheBuffer() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(BinaryFrame.HEADER_BYTES);
+        header.putInt(MAX_FRAME_BYTES - BinaryFrame.LENGTH_BYTES + 1).putInt(1);
+        write(header.array());
+
+        assertEquals(-1, client.read(ByteBuffer.allocate(1)));
+        assertEquals(0, counted.get());
+    }
+
+    @Test
+    void closesOnMalformedFrameWithoutCountingItsMessages() throws IOException {
+        byte[] frame = frame(message(1, ADDRESS));
+        ByteBuffer trailing = ByteBuffer.allocate(frame.length + 3).put(frame);
+        trailing.putInt(0, frame.length - BinaryFrame.LENGTH_BYTES + 3);
+        write(trailing.array());
+
+        assertEquals(-1, client.read(ByteBuffer.allocate(1)));
+        assertEquals(0, counted.get());
+    }
+
+    private BinaryConnection connection(ScriptedChannel channel) {
+        BinaryConnection connection = new BinaryConnection(channel, new BufferPool(MAX_FRAME_BYTES, 4), validator,
+                new Utf8Decoder(MAX_FRAME_BYTES), new Utf8Decoder(MAX_FRAME_BYTES));
+        channel.key = new ScriptedKey(channel);
+        connection.attach(channel.key);
+        return connection;
+    }
+
+    private static byte code(IngestResult result) {
+        return (byte) result.code();
+    }
+
+    private static byte[] message(int customerId, int address) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(customerId);
+        out.writeInt(1);
+        out.writeInt(address);
+        out.writeLong(NOW);
+        byte[] userId = "u".getBytes(StandardCharsets.UTF_8);
+        out.writeShort(userId.length);
+        out.write(userId);
+        out.writeShort(0);
+        return bytes.toByteArray();
+    }
+
+    private static byte[] frame(byte[]... messages) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        for (byte[] message : messages) {
+            body.write(message);
+        }
+        ByteBuffer frame = ByteBuffer.allocate(BinaryFrame.HEADER_BYTES + body.size());
+        frame.putInt(BinaryFrame.HEADER_BYTES - BinaryFrame.LENGTH_BYTES + body.size());
+        frame.putInt(messages.length);
+        frame.put(body.toByteArray());
+        return frame.array();
+    }
+
+    private void write(byte[] bytes) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            client.write(buffer);
+        }
+    }
+
+    private byte[] response() throws IOException {
+        int count = read(BinaryFrame.RESPONSE_HEADER_BYTES).getInt();
+        return read(count).array();
+    }
+
+    /**
+     * Channel fed by the test, which takes written bytes only while {@link #writable}.
+     */
+    private static class ScriptedChannel extends SocketChannel {
+        final ByteArrayOutputStream written = new ByteArrayOutputStream();
+        boolean writable;
+        SelectionKey key;
+        private ByteBuffer input = ByteBuffer.allocate(0);
+
+        ScriptedChannel() {
+            super(SelectorProvider.provider());
+        }
+
+        void input(byte[] bytes) {
+            input = ByteBuffer.wrap(bytes);
+        }
+
+        @Override
+        public int read(ByteBuffer dst) {
+            int n = Math.min(dst.remaining(), input.remaining());
+            dst.put(input.slice(input.position(), n));
+            input.position(input.position() + n);
+            return n;
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            if (!writable) {
+                return 0;
+            }
+            int n = src.remaining();
+            byte[] bytes = new byte[n];
+            src.get(bytes);
+            written.writeBytes(bytes);
+            return n;
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts, int offset, int length) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public SocketChannel bind(SocketAddress local) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public <T> SocketChannel setOption(SocketOption<T> name, T value) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public <T> T getOption(SocketOption<T> name) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Set<SocketOption<?>> supportedOptions() {
+            return Set.of();
+        }
+
+        @Override
+        public SocketChannel shutdownInput() {
+            return this;
+        }
+
+        @Override
+        public SocketChannel shutdownOutput() {
+            return this;
+        }
+
+        @Override
+        public Socket socket() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean isConnected() {
+            return true;
+        }
+
+        @Override
+        public boolean isConnectionPending() {
+            return false;
+        }
+
+        @Override
+        public boolean connect(SocketAddress remote) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean finishConnect() {
+            return true;
+        }
+
+        @Override
+        public SocketAddress getRemoteAddress() {
+            return null;
+        }
+
+        @Override
+        public SocketAddress getLocalAddress() {
+            return null;
+        }
+
+        @Override
+        protected void implCloseSelectableChannel() {
+        }
+
+        @Override
+        protected void implConfigureBlocking(boolean block) {
+        }
+    }
+
+    private static class ScriptedKey extends SelectionKey {
+        private final SelectableChannel channel;
+        private int interestOps = OP_READ;
+
+        ScriptedKey(SelectableChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public SelectableChannel channel() {
+            return channel;
+        }
+
+        @Override
+        public Selector selector() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean isValid() {
+            return true;
+        }
+
+        @Override
+        public void cancel() {
+        }
+
+        @Override
+        public int interestOps() {
+            return interestOps;
+        }
+
+        @Override
+        public SelectionKey interestOps(int ops) {
+            interestOps = ops;
+            return this;
+        }
+
+        @Override
+        public int readyOps() {
+            return 0;
+        }
+    }
+
+    private ByteBuffer read(int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (client.read(buffer) < 0) {
+                throw new IOException("Connection closed");
+            }
+        }
+        return buffer.flip();
+    }
+}
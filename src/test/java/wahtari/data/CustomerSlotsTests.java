@@ -0,0 +1,67 @@
+package wahtari.data;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CustomerSlotsTests {
+
+    private static Set<Integer> ids(int from, int to) {
+        return IntStream.range(from, to).boxed().collect(Collectors.toSet());
+    }
+
+    @Test
+    void keepsSlotsAcrossReloads() {
+        CustomerSlots slots = new CustomerSlots(100);
+        slots.assign(ids(1, 20));
+        int[] before = IntStream.range(1, 20).map(slots::slot).toArray();
+
+        slots.assign(ids(1, 50));
+        assertEquals(before.length, IntStream.range(1, 20).filter(id -> slots.slot(id) == before[id - 1]).count());
+
+        Set<Integer> assigned = new HashSet<>();
+        for (int id = 1; id < 50; id++) {
+            int slot = slots.slot(id);
+            assertTrue(slot >= 0 && slot < 49);
+            assertTrue(assigned.add(slot));
+            assertEquals(id, slots.customerId(slot));
+        }
+        assertEquals(CustomerSlots.NO_SLOT, slots.slot(50));
+        assertFalse(slots.overflowed());
+    }
+
+    @Test
+    void leavesCustomersBeyondTheLimitWithoutSlot() {
+        CustomerSlots slots = new CustomerSlots(10);
+        slots.assign(ids(1, 16));
+
+        assertTrue(slots.overflowed());
+        assertEquals(10, ids(1, 16).stream().filter(id -> slots.slot(id) != CustomerSlots.NO_SLOT).count());
+    }
+
+    @Test
+    void leavesTableInPlaceOnReloadsAfterOverflow() {
+        CustomerSlots slots = new CustomerSlots(10);
+        slots.assign(ids(1, 10));
+        Object table = ReflectionTestUtils.getField(slots, "table");
+
+        slots.assign(ids(1, 16));
+        Object overflowed = ReflectionTestUtils.getField(slots, "table");
+        assertNotSame(table, overflowed);
+        assertTrue(slots.overflowed());
+
+        slots.assign(ids(1, 16));
+        slots.assign(ids(1, 20));
+        assertSame(overflowed, ReflectionTestUtils.getField(slots, "table"));
+    }
+}
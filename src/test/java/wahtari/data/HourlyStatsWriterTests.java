@@ -0,0 +1,131 @@
+package wahtari.data;
+
+import org.flywaydb.core.Flyway;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+import wahtari.data.StatsService.StatDelta;
+import wahtari.data.StatsService.StatKey;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Chunk transactions of {@link HourlyStatsWriter} on an in-memory database, with the rollups
+ * failing on chosen customers.
+ */
+class HourlyStatsWriterTests {
+
+    private static final Instant HOUR = Instant.parse("2024-01-01T10:00:00Z");
+    // rollups of this customer fail inside the chunk transaction
+    private static final int FAILING = 13;
+    // rollups of this customer throw an Error, which escapes the chunk handling
+    private static final int CRASHING = 666;
+
+    private JdbcDataSource dataSource;
+    private JdbcTemplate jdbc;
+    private HourlyStatsWriter writer;
+
+    @BeforeEach
+    void migrate() {
+        dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:writer-" + System.nanoTime()
+                + ";DB_CLOSE_DELAY=-1;mode=MySQL;DATABASE_TO_LOWER=TRUE");
+        Flyway.configure().dataSource(dataSource).locations("classpath:/db/migrations").load().migrate();
+        jdbc = new JdbcTemplate(dataSource);
+        jdbc.update("delete from hourly_stats");
+        for (int customerId : new int[]{5, FAILING, 14, 15, CRASHING}) {
+            jdbc.update("insert into customer(id, name) values (?, ?)", customerId, "Customer " + customerId);
+        }
+    }
+
+    @AfterEach
+    void shutdown() {
+        writer.shutdown();
+    }
+
+    private void writer(int shards, int chunkSize) {
+        RollupService rollups = new RollupService(dataSource) {
+            @Override
+            void write(JdbcTemplate jdbc, List<StatDelta> deltas) {
+                for (StatDelta delta : deltas) {
+                    if (delta.key().customerId() == FAILING) {
+                        throw new IllegalStateException("rollup failed");
+                    }
+                    if (delta.key().customerId() == CRASHING) {
+                        throw new AssertionError("rollup crashed");
+                    }
+                }
+                super.write(jdbc, deltas);
+            }
+        };
+        writer = new HourlyStatsWriter(dataSource, rollups, shards);
+        ReflectionTestUtils.setField(writer, "chunkSize", chunkSize);
+        ReflectionTestUtils.setField(writer, "batchSize", 500);
+    }
+
+    private static StatDelta delta(int customerId, long requests) {
+        return new StatDelta(new StatKey(HOUR, customerId), requests, 1);
+    }
+
+    private Map<Integer, Long> stored() {
+        Map<Integer, Long> requests = new TreeMap<>();
+        jdbc.query("select customer_id, request_count from hourly_stats",
+                rs -> {
+                    requests.put(rs.getInt(1), rs.getLong(2));
+                });
+        return requests;
+    }
+
+    @Test
+    void storesAllShards() {
+        writer(4, 2);
+        writer.write(List.of(delta(1, 10), delta(2, 20), delta(3, 30), delta(4, 40), delta(5, 50)));
+        writer.write(List.of(delta(1, 1)));
+
+        assertEquals(Map.of(1, 11L, 2, 20L, 3, 30L, 4, 40L, 5, 50L), stored());
+        assertEquals(151L, jdbc.queryForObject("select sum(request_count) from daily_stats", Long.class));
+    }
+
+    @Test
+    void failedChunkAndFollowingOnesAreReturned() {
+        writer(1, 2);
+        // chunks in customer order: [1, 2] [13, 14] [15]
+        HourlyStatsWriter.FlushException e = assertThrows(HourlyStatsWriter.FlushException.class,
+                () -> writer.write(List.of(delta(15, 15), delta(14, 14), delta(FAILING, 13), delta(2, 2), delta(1, 1))));
+
+        assertEquals(List.of(delta(FAILING, 13), delta(14, 14), delta(15, 15)), e.failed());
+        // the committed chunk keeps its rollups, the failed one left nothing behind
+        assertEquals(Map.of(1, 1L, 2, 2L), stored());
+        assertEquals(3L, jdbc.queryForObject("select sum(request_count) from daily_stats", Long.class));
+    }
+
+    @Test
+    void otherShardsAreCommittedWhenOneFails() {
+        writer(2, 10);
+        HourlyStatsWriter.FlushException e = assertThrows(HourlyStatsWriter.FlushException.class,
+                () -> writer.write(List.of(delta(2, 2), delta(FAILING, 13), delta(4, 4), delta(1, 1))));
+
+        // odd customers share the shard of the failing one
+        assertEquals(List.of(delta(1, 1), delta(FAILING, 13)), e.failed());
+        assertEquals(Map.of(2, 2L, 4, 4L), stored());
+    }
+
+    @Test
+    void crashedShardIsReturnedWhole() {
+        writer(2, 10);
+        HourlyStatsWriter.FlushException e = assertThrows(HourlyStatsWriter.FlushException.class,
+                () -> writer.write(List.of(delta(2, 2), delta(CRASHING, 666), delta(4, 4))));
+
+        assertEquals(List.of(delta(2, 2), delta(4, 4), delta(CRASHING, 666)), e.failed());
+        assertEquals(Map.of(), stored());
+    }
+}
@@ -0,0 +1,81 @@
+package wahtari.data;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import wahtari.data.StatsService.StatDelta;
+import wahtari.data.StatsService.StatKey;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SnapshotSpillTests {
+
+    private static final Instant HOUR = Instant.parse("2024-01-01T10:00:00Z");
+
+    @TempDir
+    Path dir;
+
+    private final List<StatDelta> deltas = List.of(
+            new StatDelta(new StatKey(HOUR, 1), 10, 2),
+            new StatDelta(new StatKey(HOUR.plusSeconds(3600), 2), Long.MAX_VALUE, 0),
+            new StatDelta(new StatKey(HOUR, Integer.MAX_VALUE), 0, 7));
+
+    @Test
+    void readsBackWrittenDeltas() throws IOException {
+        SnapshotSpill spill = new SnapshotSpill(dir);
+        spill.write(deltas);
+
+        Path file = spill.oldest().orElseThrow();
+        assertEquals(deltas, SnapshotSpill.read(file));
+    }
+
+    @Test
+    void skipsPartialTrailingRecord() throws IOException {
+        SnapshotSpill spill = new SnapshotSpill(dir);
+        spill.write(deltas);
+        Path file = spill.oldest().orElseThrow();
+        // a host crash may leave the tail of the last record unwritten
+        long size = Files.size(file);
+        try (var channel = Files.newByteChannel(file, StandardOpenOption.WRITE)) {
+            channel.truncate(size - 5);
+        }
+
+        assertEquals(deltas.subList(0, 2), SnapshotSpill.read(file));
+    }
+
+    @Test
+    void returnsOldestFileFirst() throws IOException {
+        SnapshotSpill spill = new SnapshotSpill(dir);
+        spill.write(deltas.subList(0, 1));
+        spill.write(deltas.subList(1, 2));
+
+        Path oldest = spill.oldest().orElseThrow();
+        assertEquals(deltas.subList(0, 1), SnapshotSpill.read(oldest));
+        Files.delete(oldest);
+        assertEquals(deltas.subList(1, 2), SnapshotSpill.read(spill.oldest().orElseThrow()));
+    }
+
+    @Test
+    void quarantinedFileIsSkipped() throws IOException {
+        SnapshotSpill spill = new SnapshotSpill(dir);
+        spill.write(deltas.subList(0, 1));
+        spill.write(deltas.subList(1, 2));
+
+        Path corrupt = spill.quarantine(spill.oldest().orElseThrow());
+        assertTrue(Files.exists(corrupt));
+        assertEquals(deltas.subList(1, 2), SnapshotSpill.read(spill.oldest().orElseThrow()));
+    }
+
+    @Test
+    void noFileWithoutDirectory() throws IOException {
+        assertEquals(Optional.empty(), new SnapshotSpill(dir.resolve("missing")).oldest());
+    }
+}
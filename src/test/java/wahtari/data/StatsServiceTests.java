@@ -0,0 +1,96 @@
+package wahtari.data;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+import wahtari.data.StatsService.StatDelta;
+import wahtari.data.StatsService.StatKey;
+
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Counting of {@link StatsService} into the hour ring and the late map, with the writer capturing
+ * the stored deltas.
+ */
+class StatsServiceTests {
+
+    @TempDir
+    Path dir;
+
+    private final long hour = System.currentTimeMillis() / 3_600_000L * 3600;
+    private final List<StatDelta> written = new ArrayList<>();
+    private final HourlyStatsWriter writer = new HourlyStatsWriter(new JdbcDataSource(), null, 1) {
+        @Override
+        void write(List<StatDelta> deltas) {
+            written.addAll(deltas);
+        }
+    };
+
+    @AfterEach
+    void shutdown() {
+        writer.shutdown();
+    }
+
+    private StatsService stats(CustomerSlots slots) {
+        StatsService stats = new StatsService(null, writer, slots, dir.toString(), 2, 1, 4, 16);
+        ReflectionTestUtils.setField(stats, "maxPendingKeys", 1000);
+        ReflectionTestUtils.setField(stats, "maxLateHours", 720);
+        return stats;
+    }
+
+    private StatDelta delta(long hourEpochSecond, int customerId, long requests, long invalid) {
+        return new StatDelta(new StatKey(Instant.ofEpochSecond(hourEpochSecond), customerId), requests, invalid);
+    }
+
+    @Test
+    void countsLateArrivalsOutsideOfTheRing() {
+        CustomerSlots slots = new CustomerSlots(16);
+        slots.assign(Set.of(1, 2));
+        StatsService stats = stats(slots);
+        stats.markValid(hour, 1);
+        stats.markValid(hour - 5 * 3600, 1);
+        stats.markInvalid(hour - 5 * 3600 + 10, 1);
+        stats.markValid(hour - 5 * 3600, 2);
+        // beyond stats.window.maxLateHours
+        stats.markValid(hour - 800 * 3600, 1);
+        // not a customer of the last reload
+        stats.markValid(hour, 3);
+
+        assertEquals(3, stats.lateCount());
+        assertEquals(1, stats.outOfWindowCount());
+
+        stats.storeSnapshot();
+        assertEquals(Set.of(delta(hour, 1, 1, 0), delta(hour - 5 * 3600, 1, 1, 1), delta(hour - 5 * 3600, 2, 1, 0)),
+                Set.copyOf(written));
+        assertEquals(3, written.size());
+
+        written.clear();
+        stats.storeSnapshot();
+        assertEquals(List.of(), written);
+    }
+
+    @Test
+    void countsCustomersWithoutSlotAsLate() {
+        CustomerSlots slots = new CustomerSlots(1);
+        slots.assign(Set.of(1, 2));
+        StatsService stats = stats(slots);
+        int withSlot = slots.customerId(0);
+        int withoutSlot = withSlot == 1 ? 2 : 1;
+        stats.markValid(hour, withSlot);
+        stats.markValid(hour, withoutSlot);
+        stats.markInvalid(hour, withoutSlot);
+
+        assertEquals(2, stats.lateCount());
+        stats.storeSnapshot();
+        assertEquals(Set.of(delta(hour, withSlot, 1, 0), delta(hour, withoutSlot, 1, 1)), Set.copyOf(written));
+        assertEquals(2, written.size());
+    }
+}
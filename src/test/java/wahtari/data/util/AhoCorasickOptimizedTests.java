@@ -0,0 +1,115 @@
+package wahtari.data.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Compares the automaton with a brute-force matcher on random patterns over a small alphabet,
+ * so that patterns overlap, share suffixes and repeat.
+ */
+class AhoCorasickOptimizedTests {
+
+    // includes non-ASCII characters, which are looked up outside of the ASCII table
+    private static final String ALPHABET = "abcéж";
+    // text only, outside of the alphabet of the automaton
+    private static final String TEXT_ALPHABET = ALPHABET + "x中";
+    private static final int OWNERS = 5;
+
+    private record Match(int start, int end, String pattern) {}
+
+    private static final Comparator<Match> ORDER = Comparator.comparingInt(Match::start)
+            .thenComparingInt(Match::end).thenComparing(Match::pattern);
+
+    private final Random random = new Random(7);
+
+    private String random(String alphabet, int length) {
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            sb.append(alphabet.charAt(random.nextInt(alphabet.length())));
+        }
+        return sb.toString();
+    }
+
+    private static List<Match> bruteForce(String[] patterns, String text) {
+        List<Match> matches = new ArrayList<>();
+        for (String pattern : patterns) {
+            for (int i = text.indexOf(pattern); i >= 0; i = text.indexOf(pattern, i + 1)) {
+                matches.add(new Match(i, i + pattern.length() - 1, pattern));
+            }
+        }
+        matches.sort(ORDER);
+        return matches;
+    }
+
+    private static boolean bruteForce(String[] patterns, int[] owners, String text, int owner) {
+        for (int i = 0; i < patterns.length; i++) {
+            if (text.contains(patterns[i])
+                    && (owners[i] == AhoCorasickOptimized.GLOBAL || owners[i] == owner)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Test
+    void matchesLikeBruteForce() {
+        for (int round = 0; round < 300; round++) {
+            String[] patterns = new String[1 + random.nextInt(40)];
+            int[] owners = new int[patterns.length];
+            for (int i = 0; i < patterns.length; i++) {
+                patterns[i] = random(ALPHABET, 1 + random.nextInt(4));
+                owners[i] = random.nextInt(OWNERS);
+            }
+            AhoCorasickOptimized automaton = new AhoCorasickOptimized(patterns, owners);
+            AhoCorasickOptimized global = new AhoCorasickOptimized(patterns);
+
+            for (int t = 0; t < 50; t++) {
+                String text = random(TEXT_ALPHABET, random.nextInt(16));
+                List<Match> expected = bruteForce(patterns, text);
+
+                List<Match> found = new ArrayList<>();
+                automaton.match(text, (start, end, matched) -> found.add(new Match(start, end, matched)));
+                found.sort(ORDER);
+                assertEquals(expected, found, text);
+
+                assertEquals(!expected.isEmpty(), automaton.match(text), text);
+                assertEquals(!expected.isEmpty(), global.match(text), text);
+                for (int owner = 1; owner <= OWNERS; owner++) {
+                    assertEquals(bruteForce(patterns, owners, text, owner), automaton.match(text, owner),
+                            text + " for " + owner);
+                    assertEquals(!expected.isEmpty(), global.match(text, owner), text);
+                }
+            }
+        }
+    }
+
+    @Test
+    void matchesOwnersOfDuplicatePatterns() {
+        AhoCorasickOptimized automaton = new AhoCorasickOptimized(
+                new String[]{"bot", "bot", "bot", "crawler", "spider"}, new int[]{3, 1, 3, 2, AhoCorasickOptimized.GLOBAL});
+
+        assertTrue(automaton.match("googlebot/2.1", 1));
+        assertTrue(automaton.match("googlebot/2.1", 3));
+        assertFalse(automaton.match("googlebot/2.1", 2));
+        assertTrue(automaton.match("a crawler", 2));
+        assertFalse(automaton.match("a crawler", 3));
+        assertTrue(automaton.match("spider", 4));
+        assertFalse(automaton.match("Mozilla/5.0", 1));
+    }
+
+    @Test
+    void matchesNothingWithoutPatterns() {
+        AhoCorasickOptimized automaton = new AhoCorasickOptimized();
+
+        assertFalse(automaton.match("anything"));
+        assertFalse(automaton.match(""));
+    }
+}
@@ -0,0 +1,100 @@
+package wahtari.data.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HourlyCounterRingTests {
+
+    private static final long HOUR_MS = 3_600_000L;
+
+    private record Visit(int customer, long hourEpochSecond, long requests, long invalid) {}
+
+    private final List<Visit> visits = new ArrayList<>();
+    private final HourlyCounterMap.Visitor visitor =
+            (customer, hour, requests, invalid) -> visits.add(new Visit(customer, hour, requests, invalid));
+
+    private final long now = System.currentTimeMillis();
+    private final long hour = now / HOUR_MS * 3600;
+    // two past hours, one future hour, four customers growing up to sixteen
+    private final HourlyCounterRing ring = new HourlyCounterRing(2, 1, 4, 16);
+
+    @Test
+    void countsHoursOfTheWindow() {
+        assertTrue(ring.add(hour + 59, 1, 3, 1));
+        assertTrue(ring.add(hour, 1, 2, 0));
+        assertTrue(ring.add(hour - 2 * 3600, 2, 1, 0));
+        assertTrue(ring.add(hour + 3600, 3, 0, 1));
+
+        assertEquals(5, ring.requests(hour, 1));
+        assertEquals(1, ring.invalid(hour, 1));
+        assertEquals(1, ring.requests(hour - 2 * 3600, 2));
+        assertEquals(1, ring.invalid(hour + 3600, 3));
+        assertEquals(0, ring.requests(hour, 2));
+    }
+
+    @Test
+    void rejectsHoursOutsideOfTheWindow() {
+        assertFalse(ring.add(hour - 3 * 3600, 1, 1, 0));
+        assertFalse(ring.add(hour + 2 * 3600, 1, 1, 0));
+
+        ring.drain(visitor);
+        assertEquals(List.of(), visits);
+    }
+
+    @Test
+    void rotationPassesHoursLeavingTheRing() {
+        ring.add(hour, 1, 3, 1);
+        ring.add(hour - 3600, 2, 5, 0);
+
+        // past hours stay in spare slots for two more hours
+        ring.rotate(now + 3 * HOUR_MS, visitor);
+        assertEquals(List.of(), visits);
+
+        ring.rotate(now + 4 * HOUR_MS, visitor);
+        assertEquals(List.of(new Visit(2, hour - 3600, 5, 0)), visits);
+        assertEquals(3, ring.requests(hour, 1));
+
+        visits.clear();
+        ring.rotate(now + 5 * HOUR_MS, visitor);
+        assertEquals(List.of(new Visit(1, hour, 3, 1)), visits);
+        assertEquals(0, ring.requests(hour, 1));
+    }
+
+    @Test
+    void drainResetsCounters() {
+        ring.add(hour, 0, 2, 1);
+        ring.add(hour - 3600, 3, 1, 0);
+
+        ring.drain(visitor);
+        assertEquals(Set.of(new Visit(3, hour - 3600, 1, 0), new Visit(0, hour, 2, 1)), Set.copyOf(visits));
+        assertEquals(0, ring.requests(hour, 0));
+
+        visits.clear();
+        ring.drain(visitor);
+        assertEquals(List.of(), visits);
+    }
+
+    @Test
+    void growsForCustomersBeyondCapacity() {
+        ring.add(hour, 1, 2, 0);
+        assertFalse(ring.add(hour, 10, 1, 0));
+
+        ring.ensureCapacity(visitor);
+        assertEquals(List.of(new Visit(1, hour, 2, 0)), visits);
+        assertTrue(ring.add(hour, 10, 1, 0));
+        assertEquals(1, ring.requests(hour, 10));
+
+        // never beyond the maximum
+        assertFalse(ring.add(hour, 100, 1, 0));
+        ring.ensureCapacity(visitor);
+        assertTrue(ring.add(hour, 15, 1, 0));
+        assertFalse(ring.add(hour, 16, 1, 0));
+    }
+}
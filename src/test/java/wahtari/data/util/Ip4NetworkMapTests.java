@@ -0,0 +1,156 @@
+package wahtari.data.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class Ip4NetworkMapTests {
+
+    private static final int BLOCKED = 5;
+    private static final int ALLOWED = 0;
+
+    private static long ip(int a, int b, int c, int d) {
+        return (long) a << 24 | b << 16 | c << 8 | d;
+    }
+
+    private static Cidr cidr(long addr, int bits) {
+        return new Cidr((int) addr, (byte) bits);
+    }
+
+    private static boolean contains(Cidr cidr, long addr) {
+        int bits = cidr.netmaskBits();
+        return bits == 0 || (cidr.address() ^ (int) addr) >>> (32 - bits) == 0;
+    }
+
+    /**
+     * Longest prefix match over a plain list, the last put of a prefix wins.
+     */
+    private static int bruteForce(Map<Cidr, Integer> networks, long addr) {
+        int result = Ip4NetworkMap.NO_VALUE;
+        int longest = -1;
+        for (Map.Entry<Cidr, Integer> e : networks.entrySet()) {
+            if (contains(e.getKey(), addr) && e.getKey().netmaskBits() > longest) {
+                longest = e.getKey().netmaskBits();
+                result = e.getValue();
+            }
+        }
+        return result;
+    }
+
+    @Test
+    void mergesSiblingsAndDropsCoveredPrefixes() {
+        Ip4NetworkMap map = new Ip4NetworkMap();
+        map.put(cidr(ip(10, 0, 0, 0), 25), BLOCKED);
+        map.put(cidr(ip(10, 0, 0, 128), 25), BLOCKED);
+        map.put(cidr(ip(10, 0, 0, 64), 26), BLOCKED);
+        map.put(cidr(ip(10, 0, 0, 7), 32), BLOCKED);
+
+        Ip4NetworkMap single = new Ip4NetworkMap();
+        single.put(cidr(ip(10, 0, 0, 0), 24), BLOCKED);
+        single.compact();
+
+        map.compact();
+        assertEquals(single.nodeCount(), map.nodeCount());
+        assertEquals(BLOCKED, map.get(ip(10, 0, 0, 200)));
+        assertEquals(Ip4NetworkMap.NO_VALUE, map.get(ip(10, 0, 1, 0)));
+    }
+
+    @Test
+    void allowListCarvesOutOfLargerNetwork() {
+        Ip4NetworkMap map = new Ip4NetworkMap();
+        map.put(cidr(ip(192, 168, 0, 0), 16), BLOCKED);
+        map.put(cidr(ip(192, 168, 10, 16), 28), ALLOWED);
+        map.put(cidr(ip(192, 168, 10, 20), 32), BLOCKED);
+        map.compact();
+
+        assertEquals(BLOCKED, map.get(ip(192, 168, 10, 15)));
+        assertEquals(ALLOWED, map.get(ip(192, 168, 10, 16)));
+        assertEquals(BLOCKED, map.get(ip(192, 168, 10, 20)));
+        assertEquals(ALLOWED, map.get(ip(192, 168, 10, 31)));
+        assertEquals(BLOCKED, map.get(ip(192, 168, 10, 32)));
+        assertEquals(Ip4NetworkMap.NO_VALUE, map.get(ip(192, 169, 10, 16)));
+    }
+
+    @Test
+    void compactionKeepsLookupResults() {
+        Random random = new Random(42);
+        Map<Cidr, Integer> networks = new LinkedHashMap<>();
+        Ip4NetworkMap map = new Ip4NetworkMap(1);
+        for (int i = 0; i < 2000; i++) {
+            int bits = 12 + random.nextInt(21);
+            // a narrow range, so that prefixes overlap and siblings meet
+            long addr = ip(10, random.nextInt(4), random.nextInt(256), random.nextInt(256)) & (-1L << (32 - bits));
+            int value = random.nextInt(3);
+            Cidr cidr = cidr(addr, bits);
+            networks.remove(cidr);
+            networks.put(cidr, value);
+            map.put(cidr, value);
+        }
+
+        List<Long> probes = new ArrayList<>();
+        for (Cidr cidr : networks.keySet()) {
+            long first = cidr.address() & 0xffffffffL;
+            probes.add(first);
+            probes.add(first + (1L << (32 - cidr.netmaskBits())) - 1);
+            probes.add(first - 1);
+        }
+        for (int i = 0; i < 20000; i++) {
+            probes.add(ip(10, random.nextInt(5), random.nextInt(256), random.nextInt(256)));
+        }
+
+        for (long addr : probes) {
+            assertEquals(bruteForce(networks, addr), map.get(addr), () -> "before compaction " + addr);
+        }
+        int nodes = map.nodeCount();
+        map.compact();
+        assertTrue(map.nodeCount() < nodes, () -> map.nodeCount() + " nodes of " + nodes);
+        for (long addr : probes) {
+            assertEquals(bruteForce(networks, addr), map.get(addr), () -> "after compaction " + addr);
+        }
+    }
+
+    @Test
+    void matchesMembersOfContainingNetworks() {
+        Ip4NetworkMap map = new Ip4NetworkMap();
+        map.put(cidr(ip(10, 0, 0, 0), 8), BLOCKED);
+        map.addMember(cidr(ip(172, 16, 0, 0), 12), 1);
+        map.addMember(cidr(ip(172, 16, 5, 0), 24), 2);
+        map.addMember(cidr(ip(172, 16, 5, 0), 24), 3);
+        map.addMember(cidr(ip(10, 1, 0, 0), 16), 2);
+        map.compact();
+
+        assertEquals(Ip4NetworkMap.MEMBER_MATCH, map.get(ip(172, 16, 5, 1), 1));
+        assertEquals(Ip4NetworkMap.MEMBER_MATCH, map.get(ip(172, 16, 5, 1), 2));
+        assertEquals(Ip4NetworkMap.MEMBER_MATCH, map.get(ip(172, 16, 5, 1), 3));
+        assertEquals(Ip4NetworkMap.NO_VALUE, map.get(ip(172, 16, 6, 1), 2));
+        assertEquals(Ip4NetworkMap.NO_VALUE, map.get(ip(172, 16, 5, 1), 4));
+        assertEquals(Ip4NetworkMap.NO_VALUE, map.get(ip(172, 16, 5, 1)));
+
+        // the global value applies to other members
+        assertEquals(Ip4NetworkMap.MEMBER_MATCH, map.get(ip(10, 1, 2, 3), 2));
+        assertEquals(BLOCKED, map.get(ip(10, 1, 2, 3), 1));
+        assertEquals(BLOCKED, map.get(ip(10, 1, 2, 3)));
+    }
+
+    @Test
+    void membersAreAddedToSealedMap() {
+        Ip4NetworkMap map = new Ip4NetworkMap();
+        map.addMember(cidr(ip(172, 16, 0, 0), 16), 1);
+        map.compact();
+        map.addMember(cidr(ip(172, 16, 0, 0), 16), 2);
+        map.addMember(cidr(ip(172, 17, 0, 0), 16), 1);
+        map.trim();
+
+        assertEquals(Ip4NetworkMap.MEMBER_MATCH, map.get(ip(172, 16, 1, 1), 1));
+        assertEquals(Ip4NetworkMap.MEMBER_MATCH, map.get(ip(172, 16, 1, 1), 2));
+        assertEquals(Ip4NetworkMap.MEMBER_MATCH, map.get(ip(172, 17, 1, 1), 1));
+        assertEquals(Ip4NetworkMap.NO_VALUE, map.get(ip(172, 17, 1, 1), 2));
+    }
+}
@@ -0,0 +1,359 @@
+package wahtari.http;
+
+import org.junit.jupiter.api.Test;
+import org.xnio.channels.StreamSourceChannel;
+import wahtari.data.util.BufferPool;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Decoding of {@link InflaterBodyStream} and {@link Lz4FrameBodyStream} over a request channel which
+ * hands out a few bytes per read, so that headers, blocks and trailers are split across reads.
+ */
+class CompressedBodyStreamTests {
+
+    private static final int MAX_BYTES = 65536;
+    private static final int MAX_DECODED_BYTES = 65536;
+    private static final int LZ4_MAGIC = 0x184D2204;
+    // version 1
+    private static final int LZ4_VERSION = 0x40;
+    private static final int LZ4_INDEPENDENT = 0x20;
+    private static final int LZ4_BLOCK_CHECKSUM = 0x10;
+    private static final int LZ4_CONTENT_SIZE = 0x08;
+    private static final int LZ4_CONTENT_CHECKSUM = 0x04;
+    // block descriptor of 64 KB blocks
+    private static final int LZ4_64KB_BLOCKS = 0x40;
+
+    private static final byte[] BODY = ("[" + ("{\"customerID\":1,\"tagID\":\"tag\",\"userID\":\"user\","
+            + "\"remoteIP\":\"1.2.3.4\",\"timestamp\":1500000000},").repeat(100) + "{}]")
+            .getBytes(StandardCharsets.UTF_8);
+
+    private final BufferPool inputPool = new BufferPool(MAX_BYTES, 4);
+    private final BufferPool outputPool = new BufferPool(MAX_DECODED_BYTES, 4, false);
+    private final RequestBodyDecoder decoder = new RequestBodyDecoder(MAX_BYTES, MAX_DECODED_BYTES, 4);
+
+    /**
+     * @return a channel reading at most {@code chunk} bytes at a time
+     */
+    private static StreamSourceChannel channel(byte[] data, int chunk) {
+        ByteBuffer source = ByteBuffer.wrap(data);
+        return (StreamSourceChannel) Proxy.newProxyInstance(CompressedBodyStreamTests.class.getClassLoader(),
+                new Class<?>[]{StreamSourceChannel.class}, (proxy, method, args) -> switch (method.getName()) {
+                    case "read" -> {
+                        if (!source.hasRemaining()) {
+                            yield -1;
+                        }
+                        ByteBuffer dst = (ByteBuffer) args[0];
+                        int n = Math.min(Math.min(chunk, dst.remaining()), source.remaining());
+                        dst.put(source.slice(source.position(), n));
+                        source.position(source.position() + n);
+                        yield n;
+                    }
+                    case "isOpen" -> true;
+                    case "hashCode" -> System.identityHashCode(proxy);
+                    case "equals" -> proxy == args[0];
+                    case "toString" -> "channel";
+                    default -> throw new UnsupportedOperationException(method.getName());
+                });
+    }
+
+    private InputStream gzip(byte[] data, int chunk) {
+        return new InflaterBodyStream(channel(data, chunk), inputPool, MAX_DECODED_BYTES, true, decoder);
+    }
+
+    private InputStream deflate(byte[] data, int chunk) {
+        return new InflaterBodyStream(channel(data, chunk), inputPool, MAX_DECODED_BYTES, false, decoder);
+    }
+
+    private InputStream lz4(byte[] data, int chunk) {
+        return new Lz4FrameBodyStream(channel(data, chunk), inputPool, outputPool, MAX_DECODED_BYTES);
+    }
+
+    private static byte[] readAll(InputStream stream) throws IOException {
+        try (stream) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[100];
+            for (int n; (n = stream.read(buffer, 0, buffer.length)) >= 0; ) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    private static byte[] gzipped(byte[] data) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(data);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] deflated(byte[] data, boolean nowrap) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, nowrap);
+        try (DeflaterOutputStream deflate = new DeflaterOutputStream(out, deflater)) {
+            deflate.write(data);
+        } finally {
+            deflater.end();
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] random(int length) {
+        byte[] data = new byte[length];
+        new Random(3).nextBytes(data);
+        return data;
+    }
+
+    @Test
+    void decodesGzip() throws IOException {
+        for (int chunk : new int[]{1, 7, MAX_BYTES}) {
+            assertArrayEquals(BODY, readAll(gzip(gzipped(BODY), chunk)));
+        }
+        assertArrayEquals(new byte[0], readAll(gzip(gzipped(new byte[0]), 3)));
+    }
+
+    @Test
+    void skipsOptionalGzipHeaderFields() throws IOException {
+        byte[] gzipped = gzipped(BODY);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        // FEXTRA, FNAME, FCOMMENT, FHCRC
+        out.write(new byte[]{0x1f, (byte) 0x8b, 8, 4 | 8 | 16 | 2, 0, 0, 0, 0, 0, 3});
+        out.write(new byte[]{3, 0, 'a', 'b', 'c'});
+        out.write("body.json\0a comment\0".getBytes(StandardCharsets.US_ASCII));
+        out.write(new byte[]{0x12, 0x34});
+        out.write(gzipped, 10, gzipped.length - 10);
+
+        assertArrayEquals(BODY, readAll(gzip(out.toByteArray(), 5)));
+    }
+
+    @Test
+    void decodesZlibAndRawDeflate() throws IOException {
+        for (int chunk : new int[]{1, 7, MAX_BYTES}) {
+            assertArrayEquals(BODY, readAll(deflate(deflated(BODY, false), chunk)));
+            assertArrayEquals(BODY, readAll(deflate(deflated(BODY, true), chunk)));
+        }
+    }
+
+    @Test
+    void rejectsTruncatedGzipAndDeflate() throws IOException {
+        byte[] body = random(3000);
+        for (byte[] compressed : new byte[][]{gzipped(body), deflated(body, false), deflated(body, true)}) {
+            boolean gzip = compressed[0] == 0x1f;
+            for (int length = 0; length < compressed.length; length++) {
+                byte[] truncated = Arrays.copyOf(compressed, length);
+                assertThrows(IOException.class,
+                        () -> readAll(gzip ? gzip(truncated, 11) : deflate(truncated, 11)), "truncated to " + length);
+            }
+        }
+    }
+
+    @Test
+    void rejectsCorruptGzip() throws IOException {
+        byte[] corruptCrc = gzipped(BODY);
+        corruptCrc[corruptCrc.length - 8] ^= 1;
+        IOException e = assertThrows(IOException.class, () -> readAll(gzip(corruptCrc, 100)));
+        assertEquals("Corrupt gzip body", e.getMessage());
+
+        byte[] notGzip = deflated(BODY, false);
+        assertThrows(IOException.class, () -> readAll(gzip(notGzip, 100)));
+
+        byte[] corruptData = gzipped(BODY);
+        Arrays.fill(corruptData, 10, 20, (byte) 0xff);
+        assertThrows(IOException.class, () -> readAll(gzip(corruptData, 100)));
+    }
+
+    @Test
+    void limitsDecodedGzipAndDeflate() throws IOException {
+        byte[] large = new byte[MAX_DECODED_BYTES + 1];
+        assertTrue(RequestBodyDecoder.isTooLarge(
+                assertThrows(IOException.class, () -> readAll(gzip(gzipped(large), 100)))));
+        assertTrue(RequestBodyDecoder.isTooLarge(
+                assertThrows(IOException.class, () -> readAll(deflate(deflated(large, false), 100)))));
+
+        byte[] limit = new byte[MAX_DECODED_BYTES];
+        assertArrayEquals(limit, readAll(gzip(gzipped(limit), 100)));
+    }
+
+    /**
+     * Writes LZ4 frames by hand, sequence by sequence.
+     */
+    private static class Lz4Writer {
+
+        private final ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        private final ByteArrayOutputStream block = new ByteArrayOutputStream();
+        private final int flags;
+
+        Lz4Writer(int flags) {
+            this.flags = LZ4_VERSION | flags;
+            writeIntLE(frame, LZ4_MAGIC);
+            frame.write(this.flags);
+            frame.write(LZ4_64KB_BLOCKS);
+            if ((flags & LZ4_CONTENT_SIZE) != 0) {
+                frame.writeBytes(new byte[8]);
+            }
+            // header checksum, not verified
+            frame.write(0);
+        }
+
+        Lz4Writer sequence(String literals, int offset, int matchLength) {
+            byte[] bytes = literals.getBytes(StandardCharsets.US_ASCII);
+            int match = matchLength - 4;
+            block.write(Math.min(bytes.length, 15) << 4 | Math.min(match, 15));
+            writeLength(bytes.length);
+            block.writeBytes(bytes);
+            block.write(offset & 0xff);
+            block.write(offset >>> 8);
+            writeLength(match);
+            return this;
+        }
+
+        Lz4Writer last(String literals) {
+            byte[] bytes = literals.getBytes(StandardCharsets.US_ASCII);
+            block.write(Math.min(bytes.length, 15) << 4);
+            writeLength(bytes.length);
+            block.writeBytes(bytes);
+            return endBlock();
+        }
+
+        private void writeLength(int length) {
+            if (length < 15) {
+                return;
+            }
+            int rest = length - 15;
+            for (; rest >= 255; rest -= 255) {
+                block.write(255);
+            }
+            block.write(rest);
+        }
+
+        Lz4Writer endBlock() {
+            writeIntLE(frame, block.size());
+            frame.writeBytes(block.toByteArray());
+            block.reset();
+            checksum();
+            return this;
+        }
+
+        Lz4Writer stored(byte[] data) {
+            writeIntLE(frame, data.length | 0x80000000);
+            frame.writeBytes(data);
+            checksum();
+            return this;
+        }
+
+        private void checksum() {
+            if ((flags & LZ4_BLOCK_CHECKSUM) != 0) {
+                writeIntLE(frame, 0xdeadbeef);
+            }
+        }
+
+        byte[] end() {
+            writeIntLE(frame, 0);
+            if ((flags & LZ4_CONTENT_CHECKSUM) != 0) {
+                writeIntLE(frame, 0xdeadbeef);
+            }
+            return frame.toByteArray();
+        }
+
+        private static void writeIntLE(ByteArrayOutputStream out, int value) {
+            out.write(value);
+            out.write(value >>> 8);
+            out.write(value >>> 16);
+            out.write(value >>> 24);
+        }
+    }
+
+    private static String ascii(byte[] data) {
+        return new String(data, StandardCharsets.US_ASCII);
+    }
+
+    @Test
+    void decodesLz4Sequences() throws IOException {
+        String literals = "0123456789abcdefghij";
+        byte[] frame = new Lz4Writer(LZ4_INDEPENDENT)
+                // overlapping match repeating "ab", long literals and a long match
+                .sequence("ab", 2, 10)
+                .sequence(literals, 22, 300)
+                .last("end")
+                .end();
+        String first = "ab" + "ab".repeat(5) + literals;
+        // repeats the last 22 bytes
+        String expected = first + first.substring(first.length() - 22).repeat(14).substring(0, 300) + "end";
+
+        for (int chunk : new int[]{1, 5, MAX_BYTES}) {
+            assertEquals(expected, ascii(readAll(lz4(frame, chunk))));
+        }
+    }
+
+    @Test
+    void decodesLinkedAndStoredLz4Blocks() throws IOException {
+        byte[] frame = new Lz4Writer(LZ4_BLOCK_CHECKSUM | LZ4_CONTENT_SIZE | LZ4_CONTENT_CHECKSUM)
+                .last("hello world")
+                // refers to the previous block
+                .sequence("", 11, 5)
+                .last("!")
+                .stored("stored".getBytes(StandardCharsets.US_ASCII))
+                .end();
+
+        assertEquals("hello worldhello!stored", ascii(readAll(lz4(frame, 3))));
+
+        byte[] independent = new Lz4Writer(LZ4_INDEPENDENT)
+                .stored("one".getBytes(StandardCharsets.US_ASCII))
+                .stored("two".getBytes(StandardCharsets.US_ASCII))
+                .end();
+        assertEquals("onetwo", ascii(readAll(lz4(independent, 2))));
+    }
+
+    @Test
+    void rejectsTruncatedLz4() {
+        byte[] frame = new Lz4Writer(LZ4_BLOCK_CHECKSUM | LZ4_CONTENT_CHECKSUM)
+                .sequence("abc", 3, 20)
+                .last("def")
+                .stored("stored".getBytes(StandardCharsets.US_ASCII))
+                .end();
+        for (int length = 0; length < frame.length; length++) {
+            byte[] truncated = Arrays.copyOf(frame, length);
+            assertThrows(IOException.class, () -> readAll(lz4(truncated, 4)), "truncated to " + length);
+        }
+    }
+
+    @Test
+    void rejectsMalformedLz4() {
+        // offset before the start of the output
+        byte[] farOffset = new Lz4Writer(LZ4_INDEPENDENT).sequence("abc", 4, 4).last("x").end();
+        assertEquals("Malformed LZ4 block",
+                assertThrows(IOException.class, () -> readAll(lz4(farOffset, 100))).getMessage());
+
+        // block ending right after a match
+        byte[] noLastLiterals = new Lz4Writer(LZ4_INDEPENDENT).sequence("abc", 3, 4).endBlock().end();
+        assertThrows(IOException.class, () -> readAll(lz4(noLastLiterals, 100)));
+
+        byte[] notLz4 = BODY;
+        assertThrows(IOException.class, () -> readAll(lz4(notLz4, 100)));
+    }
+
+    @Test
+    void limitsDecodedLz4() throws IOException {
+        byte[] large = new Lz4Writer(0).last("a").sequence("", 1, MAX_DECODED_BYTES).last("b").end();
+        assertTrue(RequestBodyDecoder.isTooLarge(assertThrows(IOException.class, () -> readAll(lz4(large, 100)))));
+
+        byte[] limit = new Lz4Writer(0).last("a").sequence("", 1, MAX_DECODED_BYTES - 2).last("b").end();
+        assertEquals(MAX_DECODED_BYTES, readAll(lz4(limit, 100)).length);
+    }
+}
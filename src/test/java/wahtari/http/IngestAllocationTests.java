@@ -0,0 +1,198 @@
+package wahtari.http;
+
+import com.dslplatform.json.DslJson;
+import com.dslplatform.json.runtime.Settings;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import wahtari.data.CustomerSlots;
+import wahtari.data.InMemoryDao;
+import wahtari.data.StatsService;
+import wahtari.sink.EventRecord;
+import wahtari.sink.MessageSink;
+import wahtari.sink.NoopSink;
+import wahtari.sink.OverflowPolicy;
+import wahtari.sink.RingBufferSink;
+import wahtari.sink.SegmentWriter;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Allocation gate of the ingest path: drives each validation stage in-process over synthetic messages
+ * and fails if the allocated bytes per message of a stage exceed its budget.
+ *
+ * Stages are measured separately, after a warm-up, so a regression points at the stage which introduced it.
+ * Budgets are averages over {@link #MESSAGES} messages: stages which are allocation-free in the steady state
+ * get a fraction of a byte, for the JIT and the occasional deoptimization.
+ */
+@SpringBootTest
+class IngestAllocationTests {
+
+    private static final Logger log = LoggerFactory.getLogger(IngestAllocationTests.class);
+
+    private static final int MESSAGES = 2_000_000;
+    private static final int WARMUP = 200_000;
+    // distinct synthetic messages, cycled through
+    private static final int DISTINCT = 4096;
+
+    private static final double ALLOCATION_FREE = 0.5;
+
+    private static final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private interface Stage {
+        long run(int i) throws IOException;
+    }
+
+    private record Result(String stage, double budget, double bytesPerMessage) {
+        boolean overBudget() {
+            return bytesPerMessage > budget;
+        }
+    }
+
+    private static byte[][] json;
+    private static String[] ips;
+    private static int[] addresses;
+    private static int[] customerIds;
+    private static String[] userAgents;
+    private static String[] userIds;
+    private static long[] timestamps;
+
+    @Autowired
+    private InMemoryDao dao;
+
+    @TempDir
+    Path spillDir;
+
+    // results are accumulated so the JIT cannot drop the measured work
+    private long blackhole;
+
+    @BeforeAll
+    static void generateMessages() {
+        Random random = new Random(42);
+        json = new byte[DISTINCT][];
+        ips = new String[DISTINCT];
+        addresses = new int[DISTINCT];
+        customerIds = new int[DISTINCT];
+        userAgents = new String[DISTINCT];
+        userIds = new String[DISTINCT];
+        timestamps = new long[DISTINCT];
+        long now = System.currentTimeMillis() / 1000;
+        for (int i = 0; i < DISTINCT; i++) {
+            // mostly active customers, some inactive (3) and unknown (99) ones
+            customerIds[i] = switch (random.nextInt(10)) {
+                case 0 -> 3;
+                case 1 -> 99;
+                default -> new int[]{1, 2, 4}[random.nextInt(3)];
+            };
+            // every 8th address is in the blacklisted 127.0.0.0/16
+            ips[i] = i % 8 == 0
+                    ? "127.0." + random.nextInt(256) + "." + random.nextInt(256)
+                    : (1 + random.nextInt(126)) + "." + random.nextInt(256) + "." + random.nextInt(256) + "." + random.nextInt(256);
+            addresses[i] = IngestHandler.ipV4StringToInt(ips[i]).orElseThrow();
+            userAgents[i] = i % 16 == 0
+                    ? "Googlebot/2.1 (+http://www.google.com/bot.html)"
+                    : "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/" + random.nextInt(130) + ".0 Safari/537.36";
+            userIds[i] = new java.util.UUID(random.nextLong(), random.nextLong()).toString();
+            timestamps[i] = now - random.nextInt(600);
+            json[i] = ("{\"customerID\":" + customerIds[i] + ",\"tagID\":" + random.nextInt(100)
+                    + ",\"userID\":\"" + userIds[i] + "\",\"remoteIP\":\"" + ips[i]
+                    + "\",\"timestamp\":" + timestamps[i] + "}").getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    @Test
+    void ingestStagesStayWithinAllocationBudgets() throws Exception {
+        // the scheduled reload may not have completed yet
+        dao.reload();
+        // counts of the synthetic messages must not reach the shared counters, which the application stores
+        CustomerSlots slots = new CustomerSlots(1024);
+        slots.assign(dao.customerIds());
+        StatsService statsService = new StatsService(null, null, slots, spillDir.toString(), 48, 1, 1024, 1024);
+        MessageValidator validator = new MessageValidator(statsService, dao, new NoopSink());
+        DslJson<Object> dslJson = new DslJson<>(Settings.withRuntime().includeServiceLoader());
+        List<Result> results = new ArrayList<>();
+
+        // the parsed DTO and its strings are inherent to the JSON protocol
+        results.add(measure("json parse", 256, i -> {
+            byte[] body = json[i];
+            MessageDto msg = dslJson.deserialize(MessageDto.class, body, body.length);
+            return msg.getCustomerId();
+        }));
+        // regex matcher, group strings and the boxed result
+        results.add(measure("ip parse", 512, i -> IngestHandler.ipV4StringToInt(ips[i]).orElse(0)));
+        results.add(measure("customer lookup", ALLOCATION_FREE, i -> {
+            Optional<Boolean> active = dao.customerActive(customerIds[i]);
+            return active.isPresent() && active.get() ? 1 : 0;
+        }));
+        results.add(measure("ip blacklist lookup", ALLOCATION_FREE,
+                i -> dao.addressBlockReason(addresses[i], customerIds[i]) == null ? 0 : 1));
+        results.add(measure("ua blacklist match", ALLOCATION_FREE,
+                i -> dao.userAgentBlacklisted(userAgents[i], customerIds[i]) ? 1 : 0));
+        results.add(measure("stats count", ALLOCATION_FREE, i -> {
+            statsService.markValid(timestamps[i], customerIds[i]);
+            return 0;
+        }));
+
+        // all checks and counting, as done for messages of the binary protocol
+        results.add(measure("validator", ALLOCATION_FREE, i -> validator.ingest(customerIds[i], i, addresses[i],
+                timestamps[i], userIds[i], userAgents[i]).code()));
+
+        MessageSink noop = new NoopSink();
+        results.add(measure("sink offer (none)", ALLOCATION_FREE, i -> offer(noop, i)));
+        try (MessageSink ring = new RingBufferSink(2, 65536, 1024, OverflowPolicy.DROP, 5,
+                partition -> new DiscardingWriter())) {
+            results.add(measure("sink offer (ring)", ALLOCATION_FREE, i -> offer(ring, i)));
+        }
+
+        StringBuilder report = new StringBuilder("Allocation per message:");
+        for (Result result : results) {
+            report.append(String.format("%n  %-20s %10.2f B  (budget %.2f B)%s", result.stage(),
+                    result.bytesPerMessage(), result.budget(), result.overBudget() ? "  OVER BUDGET" : ""));
+        }
+        log.info("{}", report);
+        assertTrue(results.stream().noneMatch(Result::overBudget), report::toString);
+    }
+
+    private static long offer(MessageSink sink, int i) {
+        return sink.offer(customerIds[i], i, addresses[i], timestamps[i], userIds[i], EventRecord.STATUS_VALID) ? 1 : 0;
+    }
+
+    private Result measure(String name, double budget, Stage stage) throws IOException {
+        for (int i = 0; i < WARMUP; i++) {
+            blackhole += stage.run(i % DISTINCT);
+        }
+        long threadId = Thread.currentThread().threadId();
+        long before = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < MESSAGES; i++) {
+            blackhole += stage.run(i % DISTINCT);
+        }
+        long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+        return new Result(name, budget, (double) allocated / MESSAGES);
+    }
+
+    private static class DiscardingWriter implements SegmentWriter {
+        @Override
+        public void write(ByteBuffer batch) {
+            batch.position(batch.limit());
+        }
+
+        @Override
+        public void close() throws IOException {
+        }
+    }
+}